@@ -0,0 +1,239 @@
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+public class AsyncFileSink implements OutputSink, AutoCloseable {
+    private static final byte[] NEWLINE = System.lineSeparator().getBytes(StandardCharsets.UTF_8);
+    private static final long CLOSED_BIT = Long.MIN_VALUE;
+    private static final int MAX_RETAINED_CHARS = 8192;
+
+    private final AtomicLongArray sequences;
+    private final Object[][] parts;
+    private final int[] counts;
+    private final boolean[] newlines;
+    private final int mask;
+    // Claim position; the sign bit marks the sink closed so no claim can succeed after close.
+    private final AtomicLong tail = new AtomicLong();
+    private volatile long head;
+    private volatile long written;
+    private volatile boolean parked;
+    private volatile int flushWaiters;
+    private final Object flushed = new Object();
+    private volatile IOException failure;
+    private final FileChannel channel;
+    private final boolean closeChannel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 16);
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    // Touched only by the writer thread, which does all the formatting.
+    private StringBuilder text = new StringBuilder(128);
+    private CharBuffer chars = CharBuffer.allocate(128);
+    private final Thread writer;
+
+    public AsyncFileSink(FileChannel channel, int capacity, boolean closeChannel) {
+        if (capacity < 1) throw new IllegalArgumentException("Sink capacity must be positive.");
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.mask = size - 1;
+        this.sequences = new AtomicLongArray(size);
+        this.parts = new Object[size][6];
+        for (int i = 0; i < size; i++) sequences.set(i, i);
+        this.counts = new int[size];
+        this.newlines = new boolean[size];
+        this.channel = channel;
+        this.closeChannel = closeChannel;
+        this.writer = new Thread(this::drain, "output-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    public static AsyncFileSink stdout(int capacity) {
+        return new AsyncFileSink(new FileOutputStream(FileDescriptor.out).getChannel(), capacity, false);
+    }
+
+    public static AsyncFileSink open(Path file, int capacity) throws IOException {
+        return new AsyncFileSink(FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING), capacity, true);
+    }
+
+    // Copies the part references into a preallocated slot and leaves the formatting to the
+    // writer; once claimed, a slot is always published, so close() can wait for every accepted
+    // line without tracking producers.
+    public void write(Object[] parts, int count, boolean newline) {
+        long pos = claim();
+        int slot = (int) pos & mask;
+        if (this.parts[slot].length < count) this.parts[slot] = new Object[count];
+        System.arraycopy(parts, 0, this.parts[slot], 0, count);
+        counts[slot] = count;
+        newlines[slot] = newline;
+        sequences.set(slot, pos + 1);
+        if (parked) LockSupport.unpark(writer);
+    }
+
+    private long claim() {
+        long pos = tail.get();
+        while (true) {
+            if ((pos & CLOSED_BIT) != 0) throw new IllegalStateException("Output sink is closed.");
+            long diff = sequences.get((int) pos & mask) - pos;
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) return pos;
+            } else if (diff < 0) {
+                checkFailure();
+                LockSupport.unpark(writer);
+                LockSupport.parkNanos(1_000);
+            }
+            pos = tail.get();
+        }
+    }
+
+    private void drain() {
+        try {
+            while (true) {
+                long end = tail.get();
+                long pos = head;
+                if (pos == (end & ~CLOSED_BIT) && (end & CLOSED_BIT) != 0) break;
+                int slot = (int) pos & mask;
+                if (sequences.get(slot) != pos + 1) {
+                    if (written != pos) {
+                        writeBuffer();
+                        written(pos);
+                    }
+                    // Producers and close() unpark after publishing, and parked is set
+                    // before the slot is re-read, so a publish is never missed.
+                    parked = true;
+                    if (sequences.get(slot) != pos + 1 && tail.get() == end) LockSupport.park(this);
+                    parked = false;
+                    continue;
+                }
+                render(slot);
+                sequences.set(slot, pos + mask + 1);
+                head = pos + 1;
+                if (flushWaiters > 0) {
+                    writeBuffer();
+                    written(pos + 1);
+                }
+            }
+            writeBuffer();
+            written(head);
+        } catch (IOException e) {
+            failure = e;
+            written(written);
+        }
+    }
+
+    private void written(long pos) {
+        written = pos;
+        if (flushWaiters > 0) {
+            synchronized (flushed) {
+                flushed.notifyAll();
+            }
+        }
+    }
+
+    private void render(int slot) throws IOException {
+        Object[] line = parts[slot];
+        for (int i = 0, n = counts[slot]; i < n; i++) {
+            Object part = line[i];
+            line[i] = null;
+            if (part instanceof byte[]) {
+                encodeText();
+                put((byte[]) part);
+            } else {
+                Output.render(text, part);
+            }
+        }
+        encodeText();
+        if (newlines[slot]) put(NEWLINE);
+    }
+
+    private void encodeText() throws IOException {
+        if (text.length() == 0) return;
+        encode(text);
+        if (text.capacity() > MAX_RETAINED_CHARS) {
+            text = new StringBuilder(128);
+            chars = CharBuffer.allocate(128);
+        } else {
+            text.setLength(0);
+        }
+    }
+
+    private void put(byte[] bytes) throws IOException {
+        for (int offset = 0; offset < bytes.length; ) {
+            if (!buffer.hasRemaining()) writeBuffer();
+            int n = Math.min(buffer.remaining(), bytes.length - offset);
+            buffer.put(bytes, offset, n);
+            offset += n;
+        }
+    }
+
+    private void encode(StringBuilder text) throws IOException {
+        int length = text.length();
+        if (chars.capacity() < length) chars = CharBuffer.allocate(Math.max(length, chars.capacity() * 2));
+        chars.clear();
+        text.getChars(0, length, chars.array(), 0);
+        chars.limit(length);
+        CharBuffer in = chars;
+        encoder.reset();
+        while (encoder.encode(in, buffer, true).isOverflow()) writeBuffer();
+        while (encoder.flush(buffer).isOverflow()) writeBuffer();
+    }
+
+    private void writeBuffer() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) channel.write(buffer);
+        buffer.clear();
+    }
+
+    private void checkFailure() {
+        if (failure != null) throw new UncheckedIOException("Output sink failed", failure);
+    }
+
+    // While a flush waits the writer pushes each line to the channel as soon as it is
+    // rendered, and wakes the waiters every time it moves written forward.
+    public void flush() {
+        long target = tail.get() & ~CLOSED_BIT;
+        if (written < target) {
+            synchronized (flushed) {
+                flushWaiters++;
+                try {
+                    LockSupport.unpark(writer);
+                    while (written < target && failure == null && writer.isAlive()) flushed.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    flushWaiters--;
+                }
+            }
+        }
+        checkFailure();
+    }
+
+    // Lines claimed before close are written; later writers get IllegalStateException, which
+    // Output turns into a retry on whichever sink was installed in place of this one.
+    public void close() {
+        long pos;
+        while (((pos = tail.get()) & CLOSED_BIT) == 0 && !tail.compareAndSet(pos, pos | CLOSED_BIT)) Thread.onSpinWait();
+        LockSupport.unpark(writer);
+        try {
+            writer.join();
+            if (closeChannel) channel.close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not close output channel", e);
+        }
+        checkFailure();
+    }
+}
@@ -0,0 +1,97 @@
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+
+// Shared by the "bench" mode of every program; javac picks it up from the source path
+// when a program is compiled from this directory.
+public abstract class BenchmarkHarness {
+    interface Body {
+        void run(int ops) throws Exception;
+    }
+
+    interface Suite {
+        void run() throws Exception;
+    }
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    static final int WARMUPS = 5;
+    static final int ITERATIONS = 5;
+    static volatile double blackhole;
+    static PrintStream report = System.out;
+    private static String filter = "";
+
+    static void execute(String[] args, Suite suite) throws Exception {
+        filter = args.length > 1 ? args[1] : "";
+        report = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            report.printf("%-56s %32s %17s %9s %9s%n", "Benchmark", "Score", "alloc", "gc.count", "gc.time");
+            suite.run();
+        } finally {
+            System.setOut(report);
+        }
+    }
+
+    static boolean selected(String name) {
+        return name.contains(filter);
+    }
+
+    static void spin(long nanos) {
+        long until = System.nanoTime() + nanos;
+        while (System.nanoTime() < until) Thread.onSpinWait();
+    }
+
+    static void measure(String name, int ops, Body body) throws Exception {
+        if (!selected(name)) return;
+        for (int i = 0; i < WARMUPS; i++) body.run(ops);
+        double[] scores = new double[ITERATIONS];
+        long gcCount = -gcCount(), gcMillis = -gcMillis(), allocated = -allocatedBytes();
+        for (int i = 0; i < ITERATIONS; i++) {
+            long start = System.nanoTime();
+            body.run(ops);
+            scores[i] = ops * 1e9 / (System.nanoTime() - start);
+        }
+        allocated += allocatedBytes();
+        gcCount += gcCount();
+        gcMillis += gcMillis();
+        double mean = Arrays.stream(scores).average().orElse(0);
+        double error = Math.sqrt(Arrays.stream(scores).map(s -> (s - mean) * (s - mean)).sum() / (ITERATIONS - 1));
+        report.printf("%-56s %14.1f +- %10.1f ops/s %12.1f B/op %6d gc %6d ms%n",
+                name, mean, error, (double) allocated / ((long) ops * ITERATIONS), gcCount, gcMillis);
+    }
+
+    static void latency(String name, int samples, Body send) throws Exception {
+        if (!selected(name)) return;
+        for (int i = 0; i < samples; i++) send.run(1);
+        long[] nanos = new long[samples];
+        for (int i = 0; i < samples; i++) {
+            long start = System.nanoTime();
+            send.run(1);
+            nanos[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(nanos);
+        report.printf("%-56s p50 %10.1f us  p99 %10.1f us  p99.9 %10.1f us%n", name,
+                nanos[samples / 2] / 1e3, nanos[(int) (samples * 0.99)] / 1e3, nanos[(int) (samples * 0.999)] / 1e3);
+    }
+
+    private static long allocatedBytes() {
+        long total = 0;
+        for (long id : THREADS.getAllThreadIds()) total += Math.max(0, THREADS.getThreadAllocatedBytes(id));
+        return total;
+    }
+
+    private static long gcCount() {
+        long total = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) total += gc.getCollectionCount();
+        return total;
+    }
+
+    private static long gcMillis() {
+        long total = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) total += gc.getCollectionTime();
+        return total;
+    }
+}
@@ -0,0 +1,70 @@
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// Flow.Publisher over a SubmissionPublisher with a bounded per-subscriber buffer. Under DROP a
+// full buffer drops the item for that subscriber. Under BLOCK, publish() blocks the calling
+// thread - for an observer that is whichever thread notifies it, e.g. an exchange dispatcher -
+// for up to blockTimeoutMillis before the item is dropped, so one stalled subscriber cannot
+// stall its producer for ever. Both cases are counted by dropped().
+public abstract class BoundedPublisher<T> implements Flow.Publisher<T>, AutoCloseable {
+    static final long DEFAULT_BLOCK_TIMEOUT_MILLIS = 100;
+    private static final Executor DELIVERY = deliveryPool();
+
+    private final SubmissionPublisher<T> publisher;
+    private final OverflowPolicy policy;
+    private final long blockTimeoutMillis;
+    private final LongAdder dropped = new LongAdder();
+
+    protected BoundedPublisher(int bufferCapacity, OverflowPolicy policy) {
+        this(DELIVERY, bufferCapacity, policy, DEFAULT_BLOCK_TIMEOUT_MILLIS);
+    }
+
+    protected BoundedPublisher(Executor executor, int bufferCapacity, OverflowPolicy policy, long blockTimeoutMillis) {
+        if (blockTimeoutMillis < 0) throw new IllegalArgumentException("Block timeout must not be negative.");
+        this.publisher = new SubmissionPublisher<>(executor, bufferCapacity);
+        this.policy = policy;
+        this.blockTimeoutMillis = blockTimeoutMillis;
+    }
+
+    // One daemon thread per core at most; SubmissionPublisher queues a single task per
+    // subscriber, so the work queue is bounded by the number of subscribers.
+    private static Executor deliveryPool() {
+        int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+            Thread t = new Thread(r, "flow-publisher");
+            t.setDaemon(true);
+            return t;
+        });
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    public void subscribe(Flow.Subscriber<? super T> subscriber) {
+        publisher.subscribe(subscriber);
+    }
+
+    protected void publish(T item) {
+        long timeout = policy == OverflowPolicy.BLOCK ? blockTimeoutMillis : 0;
+        publisher.offer(item, timeout, TimeUnit.MILLISECONDS, (subscriber, rejected) -> {
+            dropped.increment();
+            return false;
+        });
+    }
+
+    public long dropped() {
+        return dropped.sum();
+    }
+
+    public int lag() {
+        return publisher.estimateMaximumLag();
+    }
+
+    public void close() {
+        publisher.close();
+    }
+}
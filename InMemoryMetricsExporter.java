@@ -0,0 +1,14 @@
+import java.util.Collections;
+import java.util.Map;
+
+public class InMemoryMetricsExporter implements MetricsExporter {
+    private volatile Map<String, Long> latest = Collections.emptyMap();
+
+    public void export(Map<String, Long> snapshot) {
+        latest = Collections.unmodifiableMap(snapshot);
+    }
+
+    public Map<String, Long> latest() {
+        return latest;
+    }
+}
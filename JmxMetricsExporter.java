@@ -0,0 +1,56 @@
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.Map;
+import javax.management.*;
+
+public class JmxMetricsExporter implements MetricsExporter, DynamicMBean {
+    private volatile Map<String, Long> latest = Collections.emptyMap();
+
+    public JmxMetricsExporter(String domain) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(domain + ":type=Metrics"));
+        } catch (JMException e) {
+            throw new IllegalStateException("Could not register metrics MBean in domain " + domain, e);
+        }
+    }
+
+    public void export(Map<String, Long> snapshot) {
+        latest = snapshot;
+    }
+
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        Long value = latest.get(attribute);
+        if (value == null) throw new AttributeNotFoundException(attribute);
+        return value;
+    }
+
+    public AttributeList getAttributes(String[] attributes) {
+        Map<String, Long> current = latest;
+        AttributeList list = new AttributeList();
+        for (String attribute : attributes) {
+            Long value = current.get(attribute);
+            if (value != null) list.add(new Attribute(attribute, value));
+        }
+        return list;
+    }
+
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("Metrics are read-only: " + attribute.getName());
+    }
+
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+        throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+
+    public MBeanInfo getMBeanInfo() {
+        MBeanAttributeInfo[] attributes = latest.keySet().stream()
+                .map(name -> new MBeanAttributeInfo(name, "java.lang.Long", name, true, false, false))
+                .toArray(MBeanAttributeInfo[]::new);
+        return new MBeanInfo(getClass().getName(), "Hot path counters, latency percentiles and queue depths",
+                attributes, null, null, null);
+    }
+}
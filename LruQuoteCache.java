@@ -0,0 +1,120 @@
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// Set-associative LRU: a key hashes to one set of WAYS slots and evicts the least recently used
+// slot of that set. Entries live in parallel primitive arrays, so neither a hit nor a miss
+// allocates, and sets are guarded by striped locks. Invalidation bumps the strategy's
+// generation; entries stamped with an older one stop matching and age out of their set.
+public class LruQuoteCache implements QuoteCache {
+    private static final int WAYS = 8;
+    private static final int MAX_STRIPES = 64;
+
+    private final Object[] strategies;
+    private final long[] firsts;
+    private final long[] seconds;
+    private final long[] stamps;
+    private final long[] lastUsed;
+    private final double[] quotes;
+    private final int setMask;
+    private final Object[] locks;
+    private final long[] ticks;
+    private final ConcurrentHashMap<Object, AtomicLong> generations = new ConcurrentHashMap<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public LruQuoteCache(int capacity) {
+        if (capacity < WAYS) throw new IllegalArgumentException("Cache capacity must be at least " + WAYS);
+        int sets = Integer.highestOneBit(capacity / WAYS);
+        int slots = sets * WAYS;
+        this.strategies = new Object[slots];
+        this.firsts = new long[slots];
+        this.seconds = new long[slots];
+        this.stamps = new long[slots];
+        this.lastUsed = new long[slots];
+        this.quotes = new double[slots];
+        this.setMask = sets - 1;
+        int stripes = Math.min(MAX_STRIPES, sets);
+        this.locks = new Object[stripes];
+        for (int i = 0; i < stripes; i++) locks[i] = new Object();
+        this.ticks = new long[stripes];
+    }
+
+    private AtomicLong generationOf(Object strategy) {
+        AtomicLong generation = generations.get(strategy);
+        return generation != null ? generation : generations.computeIfAbsent(strategy, s -> new AtomicLong());
+    }
+
+    private int setOf(Object strategy, long first, long second) {
+        long h = System.identityHashCode(strategy) * 0x9E3779B97F4A7C15L ^ first * 0xC2B2AE3D27D4EB4FL ^ second;
+        h = (h ^ h >>> 31) * 0xBF58476D1CE4E5B9L;
+        return (int) (h ^ h >>> 29) & setMask;
+    }
+
+    public long generation(Object strategy) {
+        return generationOf(strategy).get();
+    }
+
+    public double get(Object strategy, long generation, long first, long second) {
+        int set = setOf(strategy, first, second);
+        int stripe = set & (locks.length - 1);
+        synchronized (locks[stripe]) {
+            for (int i = set * WAYS, end = i + WAYS; i < end; i++) {
+                if (strategies[i] == strategy && firsts[i] == first && seconds[i] == second && stamps[i] == generation) {
+                    lastUsed[i] = ++ticks[stripe];
+                    hits.increment();
+                    return quotes[i];
+                }
+            }
+        }
+        misses.increment();
+        return Double.NaN;
+    }
+
+    public void put(Object strategy, long generation, long first, long second, double quote) {
+        AtomicLong current = generationOf(strategy);
+        int set = setOf(strategy, first, second);
+        int stripe = set & (locks.length - 1);
+        synchronized (locks[stripe]) {
+            if (current.get() != generation) return;
+            int victim = -1;
+            boolean sameKey = false;
+            for (int i = set * WAYS, end = i + WAYS; i < end; i++) {
+                if (strategies[i] == strategy && firsts[i] == first && seconds[i] == second) {
+                    victim = i;
+                    sameKey = true;
+                    break;
+                }
+                if (victim >= 0 && strategies[victim] == null) continue;
+                if (strategies[i] == null || victim < 0 || lastUsed[i] < lastUsed[victim]) victim = i;
+            }
+            if (!sameKey && strategies[victim] != null) evictions.increment();
+            strategies[victim] = strategy;
+            firsts[victim] = first;
+            seconds[victim] = second;
+            stamps[victim] = generation;
+            quotes[victim] = quote;
+            lastUsed[victim] = ++ticks[stripe];
+        }
+    }
+
+    public void invalidate(Object strategy) {
+        generationOf(strategy).incrementAndGet();
+    }
+
+    public void invalidateAll() {
+        for (AtomicLong generation : generations.values()) generation.incrementAndGet();
+        for (int stripe = 0; stripe < locks.length; stripe++) {
+            synchronized (locks[stripe]) {
+                for (int set = stripe; set <= setMask; set += locks.length) {
+                    for (int i = set * WAYS, end = i + WAYS; i < end; i++) strategies[i] = null;
+                }
+            }
+        }
+    }
+
+    public long hits() { return hits.sum(); }
+    public long misses() { return misses.sum(); }
+    public long evictions() { return evictions.sum(); }
+}
@@ -1,40 +1,81 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.Scanner;
 
 interface IShippingStrategy {
     double calculateShippingCost(double weight, double distance);
+
+    default void calculateShippingCost(double[] weights, double[] distances, double[] costs, int from, int to) {
+        for (int i = from; i < to; i++) costs[i] = calculateShippingCost(weights[i], distances[i]);
+    }
 }
 
 class StandardShippingStrategy implements IShippingStrategy {
     public double calculateShippingCost(double weight, double distance) {
         return weight * 0.5 + distance * 0.1;
     }
+
+    public void calculateShippingCost(double[] weights, double[] distances, double[] costs, int from, int to) {
+        for (int i = from; i < to; i++) costs[i] = weights[i] * 0.5 + distances[i] * 0.1;
+    }
 }
 
 class ExpressShippingStrategy implements IShippingStrategy {
     public double calculateShippingCost(double weight, double distance) {
         return (weight * 0.75 + distance * 0.2) + 10;
     }
+
+    public void calculateShippingCost(double[] weights, double[] distances, double[] costs, int from, int to) {
+        for (int i = from; i < to; i++) costs[i] = (weights[i] * 0.75 + distances[i] * 0.2) + 10;
+    }
 }
 
 class InternationalShippingStrategy implements IShippingStrategy {
     public double calculateShippingCost(double weight, double distance) {
         return weight * 1.0 + distance * 0.5 + 15;
     }
+
+    public void calculateShippingCost(double[] weights, double[] distances, double[] costs, int from, int to) {
+        for (int i = from; i < to; i++) costs[i] = weights[i] * 1.0 + distances[i] * 0.5 + 15;
+    }
 }
 
 class NightShippingStrategy implements IShippingStrategy {
     public double calculateShippingCost(double weight, double distance) {
         return (weight * 0.8 + distance * 0.25) + 20;
     }
+
+    public void calculateShippingCost(double[] weights, double[] distances, double[] costs, int from, int to) {
+        for (int i = from; i < to; i++) costs[i] = (weights[i] * 0.8 + distances[i] * 0.25) + 20;
+    }
 }
 
 class DeliveryContext {
     private IShippingStrategy shippingStrategy;
+    private QuoteCache quoteCache;
+    private double weightStep;
+    private double distanceStep;
 
     public void setShippingStrategy(IShippingStrategy strategy) {
         this.shippingStrategy = strategy;
     }
 
+    // Steps of 0 cache exact inputs; otherwise only inputs on the step grid are cached.
+    public void setQuoteCache(QuoteCache cache, double weightStep, double distanceStep) {
+        if (weightStep < 0 || distanceStep < 0) {
+            throw new IllegalArgumentException("Quantization steps must be non-negative.");
+        }
+        this.quoteCache = cache;
+        this.weightStep = weightStep;
+        this.distanceStep = distanceStep;
+    }
+
     public double calculateCost(double weight, double distance) {
         if (shippingStrategy == null) {
             throw new IllegalStateException("No shipping strategy selected.");
@@ -42,35 +83,349 @@ class DeliveryContext {
         if (weight < 0 || distance < 0) {
             throw new IllegalArgumentException("Weight and distance must be non-negative.");
         }
-        return shippingStrategy.calculateShippingCost(weight, distance);
+        IShippingStrategy strategy = shippingStrategy;
+        QuoteCache cache = quoteCache;
+        if (cache == null) return strategy.calculateShippingCost(weight, distance);
+        long weightKey = QuoteCache.key(weight, weightStep), distanceKey = QuoteCache.key(distance, distanceStep);
+        if (weightKey == QuoteCache.UNCACHEABLE || distanceKey == QuoteCache.UNCACHEABLE) {
+            return strategy.calculateShippingCost(weight, distance);
+        }
+        long generation = cache.generation(strategy);
+        double cost = cache.get(strategy, generation, weightKey, distanceKey);
+        if (Double.isNaN(cost)) {
+            cost = strategy.calculateShippingCost(QuoteCache.value(weightKey), QuoteCache.value(distanceKey));
+            cache.put(strategy, generation, weightKey, distanceKey, cost);
+        }
+        return cost;
+    }
+
+    public void calculateCost(double[] weights, double[] distances, double[] costs) {
+        calculateCost(weights, distances, costs, 0, weights.length);
+    }
+
+    public void calculateCost(double[] weights, double[] distances, double[] costs, int from, int to) {
+        if (shippingStrategy == null) {
+            throw new IllegalStateException("No shipping strategy selected.");
+        }
+        if (from < 0 || to > weights.length || to > distances.length || to > costs.length || from > to) {
+            throw new IllegalArgumentException("Batch range " + from + ".." + to + " does not fit the arrays.");
+        }
+        boolean negative = false;
+        for (int i = from; i < to; i++) negative |= weights[i] < 0 | distances[i] < 0;
+        if (negative) {
+            throw new IllegalArgumentException("Weight and distance must be non-negative.");
+        }
+        shippingStrategy.calculateShippingCost(weights, distances, costs, from, to);
+    }
+}
+
+class ManifestPricer {
+    private static final int WINDOW = 1 << 20;
+    private static final int BATCH = 4096;
+    private static final int BINARY_RECORD = 16;
+    private static final double[] POWERS_OF_TEN = new double[23];
+
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+    }
+
+    private final IShippingStrategy strategy;
+    private final double[] weights = new double[BATCH];
+    private final double[] distances = new double[BATCH];
+    private final double[] costs = new double[BATCH];
+    private final ByteBuffer in = ByteBuffer.allocateDirect(WINDOW).order(ByteOrder.LITTLE_ENDIAN);
+    private final ByteBuffer out = ByteBuffer.allocateDirect(WINDOW).order(ByteOrder.LITTLE_ENDIAN);
+    private FileChannel target;
+    private long records;
+    private boolean binary;
+    private boolean firstLine;
+
+    ManifestPricer(IShippingStrategy strategy) {
+        if (strategy == null) {
+            throw new IllegalStateException("No shipping strategy selected.");
+        }
+        this.strategy = strategy;
+    }
+
+    public long price(Path input, Path output) throws IOException {
+        binary = input.toString().endsWith(".bin");
+        firstLine = !binary;
+        records = 0;
+        in.clear();
+        out.clear();
+        try (FileChannel source = FileChannel.open(input, StandardOpenOption.READ);
+             FileChannel sink = FileChannel.open(output, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                     StandardOpenOption.TRUNCATE_EXISTING)) {
+            target = sink;
+            long size = source.size();
+            if (binary && size % BINARY_RECORD != 0) {
+                throw new IOException("Binary manifest size " + size + " is not a multiple of " + BINARY_RECORD);
+            }
+            boolean eof = false;
+            while (!eof) {
+                while (in.hasRemaining() && !eof) eof = source.read(in) < 0;
+                in.flip();
+                int consumed = binary ? readBinary() : readCsv(eof);
+                if (consumed == 0 && !eof) {
+                    throw new IOException("Manifest line longer than " + WINDOW + " bytes");
+                }
+                in.position(consumed);
+                in.compact();
+            }
+            drainOutput();
+        } finally {
+            target = null;
+        }
+        return records;
+    }
+
+    private int readBinary() throws IOException {
+        int count = 0;
+        while (in.remaining() >= BINARY_RECORD) {
+            weights[count] = in.getDouble();
+            distances[count] = in.getDouble();
+            if (++count == BATCH) count = flush(count);
+        }
+        flush(count);
+        return in.position();
+    }
+
+    private int readCsv(boolean last) throws IOException {
+        int limit = in.limit();
+        int consumed = 0;
+        int count = 0;
+        for (int i = 0; i < limit; ) {
+            int end = i;
+            while (end < limit && in.get(end) != '\n') end++;
+            if (end == limit && !last) break;
+            int lineEnd = end > i && in.get(end - 1) == '\r' ? end - 1 : end;
+            if (firstLine && isHeader(i, lineEnd)) {
+                firstLine = false;
+            } else {
+                firstLine = false;
+                long record = records + count + 1;
+                int comma = i;
+                while (comma < lineEnd && in.get(comma) != ',') comma++;
+                if (comma == lineEnd) throw new IOException("Malformed manifest record " + record);
+                weights[count] = parseDecimal(i, comma, record);
+                distances[count] = parseDecimal(comma + 1, lineEnd, record);
+                if (++count == BATCH) count = flush(count);
+            }
+            i = end + 1;
+            consumed = Math.min(i, limit);
+        }
+        flush(count);
+        return consumed;
+    }
+
+    private boolean isHeader(int from, int to) {
+        while (from < to && in.get(from) == ' ') from++;
+        if (from == to) return false;
+        byte b = in.get(from);
+        return b == '"' || (b | 0x20) >= 'a' && (b | 0x20) <= 'z';
+    }
+
+    private static boolean isDigit(byte b) {
+        return b >= '0' && b <= '9';
+    }
+
+    private double parseDecimal(int from, int to, long record) throws IOException {
+        while (from < to && in.get(from) == ' ') from++;
+        while (to > from && in.get(to - 1) == ' ') to--;
+        if (from == to) throw new IOException("Missing number in manifest record " + record);
+        boolean negative = in.get(from) == '-';
+        int i = negative || in.get(from) == '+' ? from + 1 : from;
+        long mantissa = 0;
+        int scale = -1;
+        int digits = 0;
+        for (; i < to; i++) {
+            byte b = in.get(i);
+            if (b == '.' && scale < 0) {
+                scale = 0;
+            } else if (isDigit(b) && mantissa < 1L << 53) {
+                mantissa = mantissa * 10 + (b - '0');
+                digits++;
+                if (scale >= 0) scale++;
+            } else {
+                return parseSlow(from, to, record);
+            }
+        }
+        if (digits == 0) throw new IOException("Malformed number in manifest record " + record);
+        if (mantissa >= 1L << 53 || scale >= POWERS_OF_TEN.length) return parseSlow(from, to, record);
+        double value = scale <= 0 ? mantissa : mantissa / POWERS_OF_TEN[scale];
+        return negative ? -value : value;
+    }
+
+    private double parseSlow(int from, int to, long record) throws IOException {
+        byte[] text = new byte[to - from];
+        for (int i = from; i < to; i++) {
+            byte b = in.get(i);
+            if (!isDigit(b) && b != '.' && b != '-' && b != '+' && b != 'e' && b != 'E') {
+                throw new IOException("Malformed number in manifest record " + record);
+            }
+            text[i - from] = b;
+        }
+        try {
+            return Double.parseDouble(new String(text, StandardCharsets.US_ASCII));
+        } catch (NumberFormatException e) {
+            throw new IOException("Malformed number in manifest record " + record, e);
+        }
+    }
+
+    private int flush(int count) throws IOException {
+        if (count == 0) return 0;
+        for (int i = 0; i < count; i++) {
+            if (weights[i] < 0 || distances[i] < 0) {
+                throw new IllegalArgumentException("Weight and distance must be non-negative (record " + (records + i + 1) + ").");
+            }
+        }
+        strategy.calculateShippingCost(weights, distances, costs, 0, count);
+        for (int i = 0; i < count; i++) {
+            if (binary) {
+                ensureOutput(8).putDouble(costs[i]);
+            } else {
+                writeCents(Math.round(costs[i] * 100));
+            }
+        }
+        records += count;
+        return 0;
+    }
+
+    private void writeCents(long cents) throws IOException {
+        int digits = 1;
+        for (long v = cents / 100; v >= 10; v /= 10) digits++;
+        ByteBuffer buffer = ensureOutput(digits + 4);
+        int start = buffer.position();
+        long whole = cents / 100;
+        for (int i = digits - 1; i >= 0; i--, whole /= 10) buffer.put(start + i, (byte) ('0' + whole % 10));
+        buffer.position(start + digits);
+        buffer.put((byte) '.').put((byte) ('0' + cents / 10 % 10)).put((byte) ('0' + cents % 10)).put((byte) '\n');
+    }
+
+    private ByteBuffer ensureOutput(int bytes) throws IOException {
+        if (out.remaining() < bytes) drainOutput();
+        return out;
+    }
+
+    private void drainOutput() throws IOException {
+        out.flip();
+        while (out.hasRemaining()) target.write(out);
+        out.clear();
     }
 }
 
-public class Main{
-    public static void main(String[] args) {
+class Benchmarks extends BenchmarkHarness {
+    static void main(String[] args) throws Exception {
+        execute(args, Benchmarks::run);
+    }
+
+    private static void run() throws Exception {
+        IShippingStrategy[] strategies = {
+                new StandardShippingStrategy(), new ExpressShippingStrategy(),
+                new InternationalShippingStrategy(), new NightShippingStrategy()
+        };
+        DeliveryContext context = new DeliveryContext();
+        for (IShippingStrategy strategy : strategies) {
+            measure("DeliveryContext.calculateCost:" + strategy.getClass().getSimpleName(), 1_000_000, ops -> {
+                context.setShippingStrategy(strategy);
+                double sum = 0;
+                for (int i = 0; i < ops; i++) sum += context.calculateCost(0.5 + (i & 63), 10 + (i & 1023));
+                blackhole = sum;
+            });
+        }
+        measure("DeliveryContext.calculateCost:mixed", 1_000_000, ops -> {
+            double sum = 0;
+            for (int i = 0; i < ops; i++) {
+                context.setShippingStrategy(strategies[i & 3]);
+                sum += context.calculateCost(0.5 + (i & 63), 10 + (i & 1023));
+            }
+            blackhole = sum;
+        });
+
+        DeliveryContext cached = new DeliveryContext();
+        cached.setShippingStrategy(strategies[1]);
+        LruQuoteCache quotes = new LruQuoteCache(1 << 16);
+        cached.setQuoteCache(quotes, 0.5, 10);
+        measure("DeliveryContext.calculateCost:cached", 1_000_000, ops -> {
+            double sum = 0;
+            for (int i = 0; i < ops; i++) sum += cached.calculateCost(0.5 + (i & 63), 10 + 10 * (i & 255));
+            blackhole = sum;
+        });
+        if (selected("DeliveryContext.calculateCost:cached")) {
+            report.printf("  %-54s hits %d, misses %d, evictions %d%n", "quote cache", quotes.hits(), quotes.misses(), quotes.evictions());
+        }
+
+        int parcels = 1_000_000;
+        double[] weights = new double[parcels], distances = new double[parcels], costs = new double[parcels];
+        for (int i = 0; i < parcels; i++) {
+            weights[i] = 0.5 + (i & 63);
+            distances[i] = 10 + (i & 1023);
+        }
+        for (IShippingStrategy strategy : strategies) {
+            measure("DeliveryContext.calculateCost[]:" + strategy.getClass().getSimpleName(), parcels, ops -> {
+                context.setShippingStrategy(strategy);
+                context.calculateCost(weights, distances, costs);
+                blackhole = costs[ops - 1];
+            });
+        }
+
+        Path manifest = Files.createTempFile("manifest", ".csv");
+        Path priced = Files.createTempFile("priced", ".csv");
+        try {
+            StringBuilder lines = new StringBuilder("weight,distance\n");
+            for (int i = 0; i < parcels; i++) lines.append(weights[i]).append(',').append(distances[i]).append('\n');
+            Files.writeString(manifest, lines);
+            ManifestPricer pricer = new ManifestPricer(strategies[0]);
+            measure("ManifestPricer.price:csv", parcels, ops -> blackhole = pricer.price(manifest, priced));
+        } finally {
+            Files.deleteIfExists(manifest);
+            Files.deleteIfExists(priced);
+        }
+    }
+}
+
+// Compile from this directory so javac finds the shared benchmark harness on the source path;
+// the single-file source launcher cannot, so `java "Main (5).java"` does not work. Main is
+// package-private so javac accepts it in a file not named Main.java:
+//   javac -encoding UTF-8 -sourcepath . -d out/shipping "Main (5).java"
+//   java -cp out/shipping Main [bench [filter] | price-manifest strategy input output]
+class Main{
+    static IShippingStrategy strategyFor(String choice) {
+        switch (choice) {
+            case "1": return new StandardShippingStrategy();
+            case "2": return new ExpressShippingStrategy();
+            case "3": return new InternationalShippingStrategy();
+            case "4": return new NightShippingStrategy();
+            default: return null;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("bench")) {
+            Benchmarks.main(args);
+            return;
+        }
+        if (args.length == 4 && args[0].equals("price-manifest")) {
+            ManifestPricer pricer = new ManifestPricer(strategyFor(args[1]));
+            long start = System.nanoTime();
+            long records = pricer.price(Path.of(args[2]), Path.of(args[3]));
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf("Priced %d records in %.2f s (%.0f records/s)\n", records, seconds, records / seconds);
+            return;
+        }
         Scanner sc = new Scanner(System.in);
         DeliveryContext deliveryContext = new DeliveryContext();
 
         System.out.println("Choose delivery type: 1 - Standard, 2 - Express, 3 - International, 4 - Night");
         String choice = sc.nextLine();
 
-        switch (choice) {
-            case "1":
-                deliveryContext.setShippingStrategy(new StandardShippingStrategy());
-                break;
-            case "2":
-                deliveryContext.setShippingStrategy(new ExpressShippingStrategy());
-                break;
-            case "3":
-                deliveryContext.setShippingStrategy(new InternationalShippingStrategy());
-                break;
-            case "4":
-                deliveryContext.setShippingStrategy(new NightShippingStrategy());
-                break;
-            default:
-                System.out.println("Invalid choice.");
-                return;
+        IShippingStrategy strategy = strategyFor(choice);
+        if (strategy == null) {
+            System.out.println("Invalid choice.");
+            return;
         }
+        deliveryContext.setShippingStrategy(strategy);
 
         System.out.print("Enter package weight (kg): ");
         double weight = sc.nextDouble();
@@ -1,23 +1,58 @@
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.IntConsumer;
 
 interface ICommand {
     void execute();
     void undo();
+
+    default Object receiver() { return this; }
 }
 
 class Light {
-    void on() { System.out.println("Light is ON"); }
-    void off() { System.out.println("Light is OFF"); }
+    void on() { Output.println("Light is ON"); }
+    void off() { Output.println("Light is OFF"); }
 }
 
 class TV {
-    void on() { System.out.println("TV is ON"); }
-    void off() { System.out.println("TV is OFF"); }
+    void on() { Output.println("TV is ON"); }
+    void off() { Output.println("TV is OFF"); }
 }
 
 class AirConditioner {
-    void on() { System.out.println("AC is ON"); }
-    void off() { System.out.println("AC is OFF"); }
+    void on() { Output.println("AC is ON"); }
+    void off() { Output.println("AC is OFF"); }
 }
 
 class LightOnCommand implements ICommand {
@@ -25,6 +60,7 @@ class LightOnCommand implements ICommand {
     public LightOnCommand(Light light) { this.light = light; }
     public void execute() { light.on(); }
     public void undo() { light.off(); }
+    public Object receiver() { return light; }
 }
 
 class LightOffCommand implements ICommand {
@@ -32,6 +68,7 @@ class LightOffCommand implements ICommand {
     public LightOffCommand(Light light) { this.light = light; }
     public void execute() { light.off(); }
     public void undo() { light.on(); }
+    public Object receiver() { return light; }
 }
 
 class TVOnCommand implements ICommand {
@@ -39,6 +76,7 @@ class TVOnCommand implements ICommand {
     public TVOnCommand(TV tv) { this.tv = tv; }
     public void execute() { tv.on(); }
     public void undo() { tv.off(); }
+    public Object receiver() { return tv; }
 }
 
 class TVOffCommand implements ICommand {
@@ -46,6 +84,7 @@ class TVOffCommand implements ICommand {
     public TVOffCommand(TV tv) { this.tv = tv; }
     public void execute() { tv.off(); }
     public void undo() { tv.on(); }
+    public Object receiver() { return tv; }
 }
 
 class ACOnCommand implements ICommand {
@@ -53,6 +92,7 @@ class ACOnCommand implements ICommand {
     public ACOnCommand(AirConditioner ac) { this.ac = ac; }
     public void execute() { ac.on(); }
     public void undo() { ac.off(); }
+    public Object receiver() { return ac; }
 }
 
 class ACOffCommand implements ICommand {
@@ -60,210 +100,2605 @@ class ACOffCommand implements ICommand {
     public ACOffCommand(AirConditioner ac) { this.ac = ac; }
     public void execute() { ac.off(); }
     public void undo() { ac.on(); }
+    public Object receiver() { return ac; }
 }
 
 class MacroCommand implements ICommand {
-    private List<ICommand> commands;
-    public MacroCommand(List<ICommand> commands) { this.commands = commands; }
-    public void execute() { for (ICommand cmd : commands) cmd.execute(); }
-    public void undo() { for (ICommand cmd : commands) cmd.undo(); }
-}
+    private final List<ICommand> commands;
+    private final BitSet[] prerequisites;
+    private final Executor executor;
+    private BitSet[] dependents;
+    private int[] order;
 
-class RemoteControl {
-    private Map<String, ICommand> commandSlots = new HashMap<>();
-    private Stack<ICommand> undoStack = new Stack<>();
-    private Stack<ICommand> redoStack = new Stack<>();
+    public MacroCommand(List<ICommand> commands) { this(commands, null); }
 
-    public void setCommand(String slot, ICommand command) {
-        commandSlots.put(slot, command);
+    public MacroCommand(List<ICommand> commands, Executor executor) {
+        this.commands = new ArrayList<>(commands);
+        this.prerequisites = new BitSet[commands.size()];
+        for (int i = 0; i < prerequisites.length; i++) prerequisites[i] = new BitSet();
+        orderByReceiver();
+        this.executor = executor;
+        this.dependents = dependents();
+        this.order = topologicalOrder();
     }
 
-    public void pressButton(String slot) {
-        ICommand command = commandSlots.get(slot);
-        if (command == null) {
-            System.out.println("No command assigned to slot: " + slot);
-            return;
+    public MacroCommand dependsOn(ICommand command, ICommand prerequisite) {
+        int after = indexOf(command), before = indexOf(prerequisite);
+        prerequisites[after].set(before);
+        dependents[before].set(after);
+        try {
+            order = topologicalOrder();
+        } catch (IllegalStateException e) {
+            prerequisites[after].clear(before);
+            dependents[before].clear(after);
+            throw new IllegalArgumentException("Dependency would create a cycle", e);
+        }
+        return this;
+    }
+
+    // Children that touch the same receiver keep their list order even when run in parallel.
+    private void orderByReceiver() {
+        Map<Object, Integer> last = new IdentityHashMap<>();
+        Set<Object> touched = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (int i = 0; i < commands.size(); i++) {
+            touched.clear();
+            receivers(commands.get(i), touched);
+            for (Object receiver : touched) {
+                Integer previous = last.put(receiver, i);
+                if (previous != null) prerequisites[i].set(previous);
+            }
         }
-        command.execute();
-        undoStack.push(command);
-        redoStack.clear();
+    }
+
+    static void receivers(ICommand command, Set<Object> into) {
+        if (command instanceof MacroCommand && !((MacroCommand) command).commands.isEmpty()) {
+            for (ICommand child : ((MacroCommand) command).commands) receivers(child, into);
+        } else {
+            into.add(command.receiver());
+        }
+    }
+
+    private int indexOf(ICommand command) {
+        for (int i = 0; i < commands.size(); i++) {
+            if (commands.get(i) == command) return i;
+        }
+        throw new IllegalArgumentException("Command is not part of this macro: " + command);
+    }
+
+    public void execute() {
+        boolean[] all = new boolean[order.length];
+        Arrays.fill(all, true);
+        boolean[] executed = new boolean[order.length];
+        RuntimeException failure = run(order, prerequisites, i -> commands.get(i).execute(), all, executed);
+        if (failure == null) return;
+        RuntimeException rollback = run(reverse(order), dependents, i -> commands.get(i).undo(), executed, new boolean[order.length]);
+        if (rollback != null) failure.addSuppressed(rollback);
+        throw failure;
     }
 
     public void undo() {
-        if (!undoStack.isEmpty()) {
-            ICommand command = undoStack.pop();
-            command.undo();
-            redoStack.push(command);
-        } else System.out.println("Nothing to undo");
+        boolean[] all = new boolean[order.length];
+        Arrays.fill(all, true);
+        RuntimeException failure = run(reverse(order), dependents, i -> commands.get(i).undo(), all, new boolean[order.length]);
+        if (failure != null) throw failure;
     }
 
-    public void redo() {
-        if (!redoStack.isEmpty()) {
-            ICommand command = redoStack.pop();
-            command.execute();
-            undoStack.push(command);
-        } else System.out.println("Nothing to redo");
+    private RuntimeException run(int[] order, BitSet[] waitFor, IntConsumer action, boolean[] include, boolean[] done) {
+        if (executor == null) {
+            for (int i : order) {
+                if (!include[i]) continue;
+                try {
+                    action.accept(i);
+                    done[i] = true;
+                } catch (RuntimeException e) {
+                    return e;
+                }
+            }
+            return null;
+        }
+        CompletableFuture<?>[] steps = new CompletableFuture<?>[order.length];
+        for (int i : order) {
+            if (!include[i]) {
+                steps[i] = CompletableFuture.completedFuture(null);
+                continue;
+            }
+            CompletableFuture<?>[] before = waitFor[i].stream().mapToObj(j -> steps[j]).toArray(CompletableFuture<?>[]::new);
+            int index = i;
+            steps[i] = CompletableFuture.allOf(before).thenRunAsync(() -> {
+                action.accept(index);
+                done[index] = true;
+            }, executor);
+        }
+        try {
+            CompletableFuture.allOf(steps).join();
+            return null;
+        } catch (CompletionException e) {
+            return e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+        }
     }
-}
 
-abstract class ReportGenerator {
-    public final void generateReport() {
-        collectData();
-        formatData();
-        createDocument();
-        if (customerWantsSave()) saveReport();
-        if (customerWantsSendEmail()) sendEmail();
+    private int[] topologicalOrder() {
+        int n = commands.size();
+        int[] pending = new int[n];
+        for (int i = 0; i < n; i++) pending[i] = prerequisites[i].cardinality();
+        int[] order = new int[n];
+        int head = 0, tail = 0;
+        for (int i = 0; i < n; i++) {
+            if (pending[i] == 0) order[tail++] = i;
+        }
+        while (head < tail) {
+            int i = order[head++];
+            for (int j = dependents[i].nextSetBit(0); j >= 0; j = dependents[i].nextSetBit(j + 1)) {
+                if (--pending[j] == 0) order[tail++] = j;
+            }
+        }
+        if (tail != n) throw new IllegalStateException("MacroCommand dependencies contain a cycle");
+        return order;
     }
 
-    abstract void collectData();
-    abstract void formatData();
-    abstract void createDocument();
-    abstract void saveReport();
+    private BitSet[] dependents() {
+        BitSet[] dependents = new BitSet[commands.size()];
+        for (int i = 0; i < dependents.length; i++) dependents[i] = new BitSet();
+        for (int i = 0; i < prerequisites.length; i++) {
+            for (int j = prerequisites[i].nextSetBit(0); j >= 0; j = prerequisites[i].nextSetBit(j + 1)) dependents[j].set(i);
+        }
+        return dependents;
+    }
 
-    boolean customerWantsSave() { return true; }
-    boolean customerWantsSendEmail() { return false; }
-    void sendEmail() { System.out.println("Sending report by email..."); }
+    List<ICommand> commands() {
+        return Collections.unmodifiableList(commands);
+    }
+
+    private static int[] reverse(int[] order) {
+        int[] reversed = new int[order.length];
+        for (int i = 0; i < order.length; i++) reversed[i] = order[order.length - 1 - i];
+        return reversed;
+    }
 }
 
-class PdfReport extends ReportGenerator {
-    void collectData() { System.out.println("Collecting data for PDF..."); }
-    void formatData() { System.out.println("Formatting PDF data..."); }
-    void createDocument() { System.out.println("Creating PDF document..."); }
-    void saveReport() { System.out.println("Saving PDF report..."); }
+class SlotCommand {
+    final String slot;
+    final ICommand command;
+    // Set on the per-press copy an asynchronous press puts in history when its execute throws;
+    // undo and redo tasks queued behind it then leave the receiver alone.
+    volatile boolean failed;
+
+    SlotCommand(String slot, ICommand command) {
+        this.slot = slot;
+        this.command = command;
+    }
 }
 
-class ExcelReport extends ReportGenerator {
-    void collectData() { System.out.println("Collecting data for Excel..."); }
-    void formatData() { System.out.println("Formatting Excel cells..."); }
-    void createDocument() { System.out.println("Creating Excel file..."); }
-    void saveReport() { System.out.println("Saving Excel report..."); }
+class CommandHistory {
+    private final SlotCommand[] undo;
+    private final SlotCommand[] redo;
+    private int undoHead;
+    private int undoSize;
+    private int redoSize;
+
+    CommandHistory(int capacity) {
+        if (capacity < 1) throw new IllegalArgumentException("History capacity must be positive.");
+        this.undo = new SlotCommand[capacity];
+        this.redo = new SlotCommand[capacity];
+    }
+
+    void pushUndo(SlotCommand entry) {
+        undo[(undoHead + undoSize) % undo.length] = entry;
+        if (undoSize < undo.length) undoSize++;
+        else undoHead = (undoHead + 1) % undo.length;
+    }
+
+    SlotCommand popUndo() {
+        if (undoSize == 0) return null;
+        return undo[(undoHead + --undoSize) % undo.length];
+    }
+
+    void pushRedo(SlotCommand entry) {
+        redo[redoSize++] = entry;
+    }
+
+    SlotCommand popRedo() {
+        return redoSize == 0 ? null : redo[--redoSize];
+    }
+
+    void clearRedo() {
+        redoSize = 0;
+    }
+
+    // Removes one entry by identity, searching from the top; the entries above it move down.
+    boolean removeUndo(SlotCommand entry) {
+        for (int i = undoSize - 1; i >= 0; i--) {
+            if (undo[(undoHead + i) % undo.length] != entry) continue;
+            for (int j = i; j < undoSize - 1; j++) undo[(undoHead + j) % undo.length] = undo[(undoHead + j + 1) % undo.length];
+            undoSize--;
+            return true;
+        }
+        return false;
+    }
+
+    boolean removeRedo(SlotCommand entry) {
+        for (int i = redoSize - 1; i >= 0; i--) {
+            if (redo[i] != entry) continue;
+            System.arraycopy(redo, i + 1, redo, i, redoSize - 1 - i);
+            redoSize--;
+            return true;
+        }
+        return false;
+    }
+
+    void clear() {
+        Arrays.fill(undo, null);
+        Arrays.fill(redo, null);
+        undoHead = undoSize = redoSize = 0;
+    }
+
+    List<String> replayOrder() {
+        List<String> slots = new ArrayList<>(undoSize + redoSize);
+        for (int i = 0; i < undoSize; i++) slots.add(undo[(undoHead + i) % undo.length].slot);
+        for (int i = redoSize - 1; i >= 0; i--) slots.add(redo[i].slot);
+        return slots;
+    }
+
+    int redoSize() {
+        return redoSize;
+    }
 }
 
-class HtmlReport extends ReportGenerator {
-    void collectData() { System.out.println("Collecting data for HTML..."); }
-    void formatData() { System.out.println("Formatting HTML tags..."); }
-    void createDocument() { System.out.println("Creating HTML page..."); }
-    void saveReport() { System.out.println("Saving HTML file..."); }
-    boolean customerWantsSendEmail() { return true; }
+interface JournalVisitor {
+    JournalVisitor SKIP = new JournalVisitor() {
+        public void execute(String slot) { }
+        public void undo() { }
+        public void redo() { }
+    };
+
+    void execute(String slot);
+    void undo();
+    void redo();
 }
 
-interface IMediator {
-    void sendMessage(String message, User user, String channelName);
-    void addUser(User user, String channelName);
-    void removeUser(User user, String channelName);
+class CommandJournal implements AutoCloseable {
+    static final byte END = 0, DEFINE = 1, EXECUTE = 2, UNDO = 3, REDO = 4;
+    static final int MAX_SLOT_BYTES = 0xFFFF;
+    private static final int SEGMENT = 1 << 20;
+    private static final int MAX_RECORD = 3 + MAX_SLOT_BYTES;
+
+    private final Path path;
+    private final Map<String, Integer> slotIds = new HashMap<>();
+    private final List<String> slots = new ArrayList<>();
+    private FileChannel channel;
+    private MappedByteBuffer segment;
+    private long segmentStart;
+    private long records;
+    private long compactedRecords;
+
+    public CommandJournal(Path path) throws IOException {
+        this.path = path;
+        open();
+        replay(JournalVisitor.SKIP);
+        compactedRecords = records;
+    }
+
+    static byte[] encodeSlot(String slot) {
+        byte[] name = slot.getBytes(StandardCharsets.UTF_8);
+        if (name.length > MAX_SLOT_BYTES) {
+            throw new IllegalArgumentException("Slot name longer than " + MAX_SLOT_BYTES + " UTF-8 bytes: " + slot.substring(0, 32) + "...");
+        }
+        return name;
+    }
+
+    private void open() throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        segmentStart = 0;
+        segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT);
+    }
+
+    public long records() {
+        return records;
+    }
+
+    public long recordsSinceCompaction() {
+        return records - compactedRecords;
+    }
+
+    public void replay(JournalVisitor visitor) throws IOException {
+        slotIds.clear();
+        slots.clear();
+        records = 0;
+        segmentStart = 0;
+        segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT);
+        while (true) {
+            if (segment.remaining() < MAX_RECORD) {
+                segmentStart += segment.position();
+                segment = channel.map(FileChannel.MapMode.READ_WRITE, segmentStart, SEGMENT);
+            }
+            int start = segment.position();
+            byte op = segment.get();
+            if (op == END) {
+                segment.position(start);
+                break;
+            }
+            records++;
+            if (op == DEFINE) {
+                byte[] name = new byte[segment.getShort() & 0xFFFF];
+                segment.get(name);
+                define(new String(name, StandardCharsets.UTF_8));
+            } else if (op == EXECUTE) {
+                visitor.execute(slots.get(segment.getInt()));
+            } else if (op == UNDO) {
+                visitor.undo();
+            } else if (op == REDO) {
+                visitor.redo();
+            } else {
+                throw new IOException("Corrupt journal record " + op + " at offset " + (segmentStart + start));
+            }
+        }
+    }
+
+    private int define(String slot) {
+        int id = slots.size();
+        slots.add(slot);
+        slotIds.put(slot, id);
+        return id;
+    }
+
+    public void execute(String slot) {
+        Integer id = slotIds.get(slot);
+        if (id == null) {
+            byte[] name = encodeSlot(slot);
+            reserve(3 + name.length).put(DEFINE).putShort((short) name.length).put(name);
+            id = define(slot);
+            records++;
+        }
+        reserve(5).put(EXECUTE).putInt(id);
+        records++;
+    }
+
+    public void undo() {
+        reserve(1).put(UNDO);
+        records++;
+    }
+
+    public void redo() {
+        reserve(1).put(REDO);
+        records++;
+    }
+
+    private MappedByteBuffer reserve(int bytes) {
+        if (segment.remaining() > bytes) return segment;
+        try {
+            segmentStart += segment.position();
+            segment = channel.map(FileChannel.MapMode.READ_WRITE, segmentStart, SEGMENT);
+            return segment;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot extend command journal " + path, e);
+        }
+    }
+
+    public void compact(List<String> executed, int undone) throws IOException {
+        Path temp = path.resolveSibling(path.getFileName() + ".compact");
+        try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            // Room for the largest DEFINE plus the EXECUTE that follows it.
+            ByteBuffer buffer = ByteBuffer.allocate(MAX_RECORD + 5);
+            Map<String, Integer> ids = new HashMap<>();
+            for (String slot : executed) {
+                Integer id = ids.get(slot);
+                byte[] name = encodeSlot(slot);
+                if (buffer.remaining() < 8 + name.length) buffer = drain(out, buffer);
+                if (id == null) {
+                    ids.put(slot, id = ids.size());
+                    buffer.put(DEFINE).putShort((short) name.length).put(name);
+                }
+                buffer.put(EXECUTE).putInt(id);
+            }
+            for (int i = 0; i < undone; i++) {
+                if (!buffer.hasRemaining()) buffer = drain(out, buffer);
+                buffer.put(UNDO);
+            }
+            drain(out, buffer);
+            out.force(true);
+        }
+        close();
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        open();
+        replay(JournalVisitor.SKIP);
+        compactedRecords = records;
+    }
+
+    private static ByteBuffer drain(FileChannel out, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) out.write(buffer);
+        return buffer.clear();
+    }
+
+    public void flush() {
+        segment.force();
+    }
+
+    public void close() throws IOException {
+        long end = segmentStart + segment.position();
+        segment.force();
+        segment = null;
+        channel.truncate(end);
+        channel.close();
+    }
 }
 
-class ChannelMediator implements IMediator {
-    private Map<String, List<User>> channels = new HashMap<>();
+class StripedCommandExecutor implements AutoCloseable {
+    private final ThreadPoolExecutor[] lanes;
+    private final Metrics.Registration queuedGauge;
 
-    public void sendMessage(String message, User user, String channelName) {
-        if (!channels.containsKey(channelName)) {
-            System.out.println("Channel " + channelName + " does not exist.");
+    public StripedCommandExecutor(int laneCount) {
+        lanes = new ThreadPoolExecutor[laneCount];
+        for (int i = 0; i < laneCount; i++) {
+            String name = "command-lane-" + i;
+            lanes[i] = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), r -> {
+                Thread t = new Thread(r, name);
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        queuedGauge = Metrics.gauge("remote.executor.queued", this::queued);
+    }
+
+    public long queued() {
+        long total = 0;
+        for (ThreadPoolExecutor lane : lanes) total += lane.getQueue().size();
+        return total;
+    }
+
+    // A command runs on the lane of its receiver. A macro runs on the lanes of its children's
+    // receivers; when those span several lanes it holds all of them for the whole macro.
+    public CompletableFuture<Void> submit(ICommand command, Runnable action) {
+        Set<Object> receivers = Collections.newSetFromMap(new IdentityHashMap<>());
+        MacroCommand.receivers(command, receivers);
+        BitSet involved = new BitSet(lanes.length);
+        for (Object receiver : receivers) {
+            int h = System.identityHashCode(receiver);
+            involved.set(((h ^ h >>> 16) & 0x7fffffff) % lanes.length);
+        }
+        if (involved.cardinality() == 1) return CompletableFuture.runAsync(action, lanes[involved.nextSetBit(0)]);
+        return submitAcross(involved, action);
+    }
+
+    // Multi-lane tasks are enqueued under one lock so every lane sees them in the same order;
+    // that is what keeps two macros over the same lanes from waiting on each other.
+    private synchronized CompletableFuture<Void> submitAcross(BitSet involved, Runnable action) {
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        CountDownLatch arrived = new CountDownLatch(involved.cardinality());
+        CountDownLatch finished = new CountDownLatch(1);
+        int leader = involved.length() - 1;
+        try {
+            for (int i = involved.nextSetBit(0); i >= 0; i = involved.nextSetBit(i + 1)) {
+                boolean leads = i == leader;
+                lanes[i].execute(() -> {
+                    arrived.countDown();
+                    if (!leads) {
+                        awaitQuietly(finished);
+                        return;
+                    }
+                    try {
+                        awaitQuietly(arrived);
+                        action.run();
+                        done.complete(null);
+                    } catch (Throwable e) {
+                        done.completeExceptionally(e);
+                    } finally {
+                        finished.countDown();
+                    }
+                });
+            }
+        } catch (RejectedExecutionException e) {
+            finished.countDown();
+            done.completeExceptionally(e);
+        }
+        return done;
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                latch.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+
+    public void close() {
+        queuedGauge.close();
+        for (ExecutorService lane : lanes) lane.shutdown();
+    }
+}
+
+class RemoteControl {
+    private static final CompletableFuture<Void> DONE = CompletableFuture.completedFuture(null);
+    private static final LatencyHistogram PRESS_LATENCY = Metrics.histogram("remote.pressButton");
+    private static final LongAdder UNASSIGNED = Metrics.counter("remote.pressButton.unassigned");
+
+    private final Map<String, SlotCommand> commandSlots = new HashMap<>();
+    private final CommandHistory history;
+    // Journal records of asynchronous operations, in submission order, until they complete.
+    private final ArrayDeque<Pending> unsettled = new ArrayDeque<>();
+    private final CommandJournal journal;
+    private final long compactAfter;
+    private volatile StripedCommandExecutor executor;
+
+    public RemoteControl() {
+        this(1 << 16, null, 0);
+    }
+
+    public RemoteControl(int historyCapacity, CommandJournal journal, long compactAfter) {
+        this.history = new CommandHistory(historyCapacity);
+        this.journal = journal;
+        this.compactAfter = compactAfter;
+    }
+
+    public synchronized void setCommand(String slot, ICommand command) {
+        if (journal != null) CommandJournal.encodeSlot(slot);
+        commandSlots.put(slot, new SlotCommand(slot, command));
+    }
+
+    public void setExecutor(StripedCommandExecutor executor) {
+        this.executor = executor;
+    }
+
+    // With an executor set, the blocking calls still go through the receiver's lane so they
+    // stay ordered with asynchronous presses on the same device.
+    public void pressButton(String slot) {
+        await(pressButton(slot, executor != null));
+    }
+
+    public void undo() {
+        await(undo(executor != null));
+    }
+
+    public void redo() {
+        await(redo(executor != null));
+    }
+
+    synchronized SlotCommand slot(String slot) {
+        return commandSlots.get(slot);
+    }
+
+    public void pressButtons(List<String> slots) {
+        boolean async = executor != null;
+        CompletableFuture<?>[] pressed = new CompletableFuture<?>[slots.size()];
+        synchronized (this) {
+            for (int i = 0; i < pressed.length; i++) pressed[i] = pressButton(slots.get(i), async);
+        }
+        await(CompletableFuture.allOf(pressed));
+    }
+
+    public CompletableFuture<Void> pressButtonAsync(String slot) {
+        return pressButton(slot, true);
+    }
+
+    public CompletableFuture<Void> undoAsync() {
+        return undo(true);
+    }
+
+    public CompletableFuture<Void> redoAsync() {
+        return redo(true);
+    }
+
+    private static void await(CompletableFuture<?> done) {
+        try {
+            done.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+            throw e;
+        }
+    }
+
+    private static final class Pending {
+        final byte op;
+        final SlotCommand entry;
+        boolean settled;
+        boolean succeeded;
+
+        Pending(byte op, SlotCommand entry) {
+            this.op = op;
+            this.entry = entry;
+        }
+    }
+
+    // History changes when an operation is submitted, so an undo issued right after an
+    // asynchronous press finds it and is queued on the same lanes, behind the execute. Each
+    // asynchronous press gets its own history entry; if its execute throws, that entry is
+    // removed and the undo or redo tasks queued behind it do nothing.
+    private synchronized CompletableFuture<Void> pressButton(String slot, boolean async) {
+        long start = Metrics.ENABLED ? System.nanoTime() : 0;
+        SlotCommand entry = commandSlots.get(slot);
+        if (entry == null) {
+            if (Metrics.ENABLED) UNASSIGNED.increment();
+            Output.println("No command assigned to slot: ", slot);
+            return CompletableFuture.completedFuture(null);
+        }
+        CompletableFuture<Void> done = DONE;
+        if (async) {
+            SlotCommand pressed = new SlotCommand(entry.slot, entry.command);
+            history.pushUndo(pressed);
+            history.clearRedo();
+            Pending pending = pend(CommandJournal.EXECUTE, pressed);
+            done = submit(pressed.command, () -> {
+                try {
+                    pressed.command.execute();
+                } catch (Throwable e) {
+                    pressed.failed = true;
+                    throw e;
+                }
+            }).whenComplete((v, e) -> executed(pending, e == null));
+        } else {
+            entry.command.execute();
+            history.pushUndo(entry);
+            history.clearRedo();
+            record(CommandJournal.EXECUTE, entry);
+        }
+        if (Metrics.ENABLED) PRESS_LATENCY.recordSince(start);
+        return done;
+    }
+
+    private synchronized void executed(Pending pending, boolean succeeded) {
+        if (!succeeded && !history.removeUndo(pending.entry)) history.removeRedo(pending.entry);
+        settle(pending, succeeded);
+    }
+
+    private synchronized CompletableFuture<Void> undo(boolean async) {
+        SlotCommand entry = history.popUndo();
+        if (entry == null) {
+            Output.println("Nothing to undo");
+            return CompletableFuture.completedFuture(null);
+        }
+        if (async) {
+            history.pushRedo(entry);
+            Pending pending = pend(CommandJournal.UNDO, entry);
+            return submit(entry.command, () -> {
+                if (!entry.failed) entry.command.undo();
+            }).whenComplete((v, e) -> undone(pending, e == null));
+        }
+        try {
+            entry.command.undo();
+        } catch (RuntimeException e) {
+            history.pushUndo(entry);
+            throw e;
+        }
+        history.pushRedo(entry);
+        record(CommandJournal.UNDO, entry);
+        return DONE;
+    }
+
+    // A failed undo puts the command back where undo found it, on top of the undo stack.
+    private synchronized void undone(Pending pending, boolean succeeded) {
+        if (!succeeded && !pending.entry.failed && history.removeRedo(pending.entry)) history.pushUndo(pending.entry);
+        settle(pending, succeeded);
+    }
+
+    private synchronized CompletableFuture<Void> redo(boolean async) {
+        SlotCommand entry = history.popRedo();
+        if (entry == null) {
+            Output.println("Nothing to redo");
+            return CompletableFuture.completedFuture(null);
+        }
+        if (async) {
+            history.pushUndo(entry);
+            Pending pending = pend(CommandJournal.REDO, entry);
+            return submit(entry.command, () -> {
+                if (!entry.failed) entry.command.execute();
+            }).whenComplete((v, e) -> redone(pending, e == null));
+        }
+        try {
+            entry.command.execute();
+        } catch (RuntimeException e) {
+            history.pushRedo(entry);
+            throw e;
+        }
+        history.pushUndo(entry);
+        record(CommandJournal.REDO, entry);
+        return DONE;
+    }
+
+    private synchronized void redone(Pending pending, boolean succeeded) {
+        if (!succeeded && !pending.entry.failed && history.removeUndo(pending.entry)) history.pushRedo(pending.entry);
+        settle(pending, succeeded);
+    }
+
+    private Pending pend(byte op, SlotCommand entry) {
+        if (journal == null) return null;
+        Pending pending = new Pending(op, entry);
+        unsettled.add(pending);
+        return pending;
+    }
+
+    private void record(byte op, SlotCommand entry) {
+        if (journal == null) return;
+        if (!unsettled.isEmpty()) {
+            Pending pending = pend(op, entry);
+            pending.settled = pending.succeeded = true;
             return;
         }
-        for (User u : channels.get(channelName)) {
-            if (u != user) u.receive(message, user, channelName);
+        write(op, entry);
+        compactIfNeeded();
+    }
+
+    // Operations reach the journal in submission order, however their lanes finish; failed
+    // ones, and undo or redo of a press that failed, are left out.
+    private void settle(Pending pending, boolean succeeded) {
+        if (pending == null) return;
+        pending.settled = true;
+        pending.succeeded = succeeded && !pending.entry.failed;
+        while (!unsettled.isEmpty() && unsettled.peek().settled) {
+            Pending head = unsettled.poll();
+            if (head.succeeded) write(head.op, head.entry);
         }
+        if (unsettled.isEmpty()) compactIfNeeded();
     }
 
-    public void addUser(User user, String channelName) {
-        channels.putIfAbsent(channelName, new ArrayList<>());
-        channels.get(channelName).add(user);
-        System.out.println(user.getName() + " joined channel " + channelName);
+    private void write(byte op, SlotCommand entry) {
+        if (op == CommandJournal.EXECUTE) journal.execute(entry.slot);
+        else if (op == CommandJournal.UNDO) journal.undo();
+        else journal.redo();
     }
 
-    public void removeUser(User user, String channelName) {
-        if (channels.containsKey(channelName)) {
-            channels.get(channelName).remove(user);
-            System.out.println(user.getName() + " left channel " + channelName);
+    private CompletableFuture<Void> submit(ICommand command, Runnable action) {
+        StripedCommandExecutor executor = this.executor;
+        if (executor == null) throw new IllegalStateException("No command executor set.");
+        return executor.submit(command, action);
+    }
+
+    public synchronized void recover(boolean reapply) throws IOException {
+        if (journal == null) return;
+        history.clear();
+        journal.replay(new JournalVisitor() {
+            public void execute(String slot) {
+                SlotCommand entry = commandSlots.get(slot);
+                if (entry == null) {
+                    Output.println("Journal references unknown slot: ", slot);
+                    return;
+                }
+                if (reapply) entry.command.execute();
+                history.pushUndo(entry);
+                history.clearRedo();
+            }
+
+            public void undo() {
+                SlotCommand entry = history.popUndo();
+                if (entry == null) return;
+                if (reapply) entry.command.undo();
+                history.pushRedo(entry);
+            }
+
+            public void redo() {
+                SlotCommand entry = history.popRedo();
+                if (entry == null) return;
+                if (reapply) entry.command.execute();
+                history.pushUndo(entry);
+            }
+        });
+    }
+
+    private void compactIfNeeded() {
+        if (compactAfter <= 0 || journal.recordsSinceCompaction() < compactAfter) return;
+        try {
+            journal.compact(history.replayOrder(), history.redoSize());
+        } catch (IOException e) {
+            throw new UncheckedIOException("Journal compaction failed", e);
         }
     }
 }
 
-abstract class User {
-    protected IMediator mediator;
-    protected String name;
+class CommandBatcher implements AutoCloseable {
+    private final RemoteControl remote;
+    private final int maxBatch;
+    private final long windowMillis;
+    private final ScheduledExecutorService timer;
+    private final List<String> pending = new ArrayList<>();
+    private ScheduledFuture<?> scheduledFlush;
+    private long submitted, coalesced, dispatched, batches;
 
-    public User(IMediator mediator, String name) {
-        this.mediator = mediator;
-        this.name = name;
+    public CommandBatcher(RemoteControl remote, int maxBatch, long windowMillis) {
+        if (maxBatch < 1 || windowMillis < 0) throw new IllegalArgumentException("Batch size must be positive and window non-negative.");
+        this.remote = remote;
+        this.maxBatch = maxBatch;
+        this.windowMillis = windowMillis;
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "command-batcher");
+            t.setDaemon(true);
+            return t;
+        });
     }
 
-    public String getName() { return name; }
+    public synchronized void press(String slot) {
+        pending.add(slot);
+        submitted++;
+        if (pending.size() >= maxBatch) flush();
+        else if (scheduledFlush == null) scheduledFlush = timer.schedule(this::flush, windowMillis, TimeUnit.MILLISECONDS);
+    }
 
-    public abstract void send(String message, String channelName);
-    public abstract void receive(String message, User sender, String channelName);
+    public synchronized void flush() {
+        if (scheduledFlush != null) {
+            scheduledFlush.cancel(false);
+            scheduledFlush = null;
+        }
+        if (pending.isEmpty()) return;
+        List<String> net = coalesce(pending);
+        coalesced += pending.size() - net.size();
+        dispatched += net.size();
+        batches++;
+        pending.clear();
+        if (!net.isEmpty()) remote.pressButtons(net);
+    }
+
+    // Last writer wins per receiver: a press is dropped when later presses in the same window
+    // drive every receiver it touches. Commands that are their own receiver carry no device
+    // state the batcher can reason about, so they are always kept.
+    private List<String> coalesce(List<String> slots) {
+        String[] kept = slots.toArray(new String[0]);
+        Set<Object> written = Collections.newSetFromMap(new IdentityHashMap<>());
+        Set<Object> touched = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (int i = kept.length - 1; i >= 0; i--) {
+            SlotCommand entry = remote.slot(kept[i]);
+            if (entry == null) continue;
+            touched.clear();
+            MacroCommand.receivers(entry.command, touched);
+            if (touched.contains(entry.command)) continue;
+            if (written.containsAll(touched)) kept[i] = null;
+            else written.addAll(touched);
+        }
+        List<String> net = new ArrayList<>();
+        for (String slot : kept) {
+            if (slot != null) net.add(slot);
+        }
+        return net;
+    }
+
+    public synchronized long submitted() { return submitted; }
+    public synchronized long coalesced() { return coalesced; }
+    public synchronized long dispatched() { return dispatched; }
+    public synchronized long batches() { return batches; }
+
+    public void close() {
+        flush();
+        timer.shutdown();
+    }
 }
 
-class ChatUser extends User {
-    public ChatUser(IMediator mediator, String name) {
-        super(mediator, name);
+enum ReportStage { COLLECT, FORMAT, CREATE, SAVE, SEND }
+
+abstract class ReportGenerator {
+    public final void generateReport() {
+        for (ReportStage stage : ReportStage.values()) runStage(stage);
     }
 
-    public void send(String message, String channelName) {
-        System.out.println(name + " sends message in " + channelName + ": " + message);
-        mediator.sendMessage(message, this, channelName);
+    // Streams rows until the source runs dry. A customer who does not want the report saved
+    // still gets it rendered (and emailed), but into a temporary file that is removed afterwards.
+    public final long streamReport(Path target, RowSource source, int batchSize) throws IOException {
+        RowBatch batch = new RowBatch(batchSize);
+        boolean save = customerWantsSave();
+        Path file = save ? target : Files.createTempFile("report", ".tmp");
+        try {
+            long rows = 0;
+            try (ChunkedReportWriter out = new ChunkedReportWriter(file, 1 << 18); ReportDocument document = newDocument()) {
+                document.begin(out);
+                for (int filled; (filled = source.collectRows(rows, batch)) > 0; rows += filled) {
+                    if (filled > batchSize) throw new IllegalStateException("Row source filled " + filled + " rows into a batch of " + batchSize);
+                    for (int i = 0; i < filled; i++) document.formatRow(batch, i, out);
+                }
+                document.end(out);
+            }
+            if (customerWantsSendEmail()) sendEmail();
+            return rows;
+        } finally {
+            if (!save) Files.deleteIfExists(file);
+        }
     }
 
-    public void receive(String message, User sender, String channelName) {
-        System.out.println(name + " receives from " + sender.getName() + " in " + channelName + ": " + message);
+    final void runStage(ReportStage stage) {
+        switch (stage) {
+            case COLLECT -> collectData();
+            case FORMAT -> formatData();
+            case CREATE -> createDocument();
+            case SAVE -> { if (customerWantsSave()) saveReport(); }
+            case SEND -> { if (customerWantsSendEmail()) sendEmail(); }
+        }
+    }
+
+    abstract void collectData();
+    abstract void formatData();
+    abstract void createDocument();
+    abstract void saveReport();
+
+    boolean customerWantsSave() { return true; }
+    boolean customerWantsSendEmail() { return false; }
+    void sendEmail() { Output.println("Sending report by email..."); }
+
+    // Stateless formats share one document; a format that keeps state while it writes returns
+    // a fresh one per call, so concurrent streamReport calls never share it.
+    ReportDocument newDocument() throws IOException { return CSV; }
+
+    private static final ReportDocument CSV = new ReportDocument() {
+        public void begin(ChunkedReportWriter out) throws IOException { out.put("id,amount\n"); }
+        public void formatRow(RowBatch batch, int row, ChunkedReportWriter out) throws IOException {
+            out.putLong(batch.ids[row]).put(',').putCents(batch.amounts[row]).put('\n');
+        }
+    };
+}
+
+// Renders one report into a writer, from begin() through end(); close() releases whatever the
+// document held on to, whether or not it got to end().
+interface ReportDocument extends AutoCloseable {
+    default void begin(ChunkedReportWriter out) throws IOException { }
+    void formatRow(RowBatch batch, int row, ChunkedReportWriter out) throws IOException;
+    default void end(ChunkedReportWriter out) throws IOException { }
+    default void close() throws IOException { }
+}
+
+// Fills the batch with the rows that follow the first `from` rows and returns how many it
+// filled, at most the batch capacity; 0 means the source is exhausted.
+interface RowSource {
+    int collectRows(long from, RowBatch batch);
+
+    static RowSource sample(long rows) {
+        return (from, batch) -> {
+            int count = (int) Math.min(batch.capacity(), rows - from);
+            for (int i = 0; i < count; i++) {
+                batch.ids[i] = from + i;
+                batch.amounts[i] = (from + i) * 37 % 100_000 / 100.0;
+            }
+            return Math.max(0, count);
+        };
     }
 }
 
-public class Main {
-    public static void main(String[] args) {
-        // -------- COMMAND ----------
-        System.out.println("\n=== COMMAND PATTERN ===");
-        Light light = new Light();
-        TV tv = new TV();
-        AirConditioner ac = new AirConditioner();
+final class RowBatch {
+    final long[] ids;
+    final double[] amounts;
 
-        RemoteControl remote = new RemoteControl();
-        remote.setCommand("lightOn", new LightOnCommand(light));
-        remote.setCommand("lightOff", new LightOffCommand(light));
-        remote.setCommand("tvOn", new TVOnCommand(tv));
-        remote.setCommand("tvOff", new TVOffCommand(tv));
-        remote.setCommand("acOn", new ACOnCommand(ac));
-        remote.setCommand("acOff", new ACOffCommand(ac));
+    RowBatch(int capacity) {
+        if (capacity < 1) throw new IllegalArgumentException("Batch capacity must be positive.");
+        this.ids = new long[capacity];
+        this.amounts = new double[capacity];
+    }
 
-        remote.pressButton("lightOn");
-        remote.pressButton("tvOn");
-        remote.undo();
-        remote.redo();
-
-        List<ICommand> party = Arrays.asList(
-                new LightOnCommand(light),
-                new TVOnCommand(tv),
-                new ACOnCommand(ac)
-        );
-        remote.setCommand("partyMode", new MacroCommand(party));
-        remote.pressButton("partyMode");
-        remote.undo();
-
-        System.out.println("\n=== TEMPLATE METHOD PATTERN ===");
-        ReportGenerator pdf = new PdfReport();
-        ReportGenerator excel = new ExcelReport();
-        ReportGenerator html = new HtmlReport();
-        pdf.generateReport();
-        excel.generateReport();
-        html.generateReport();
-
-
-        System.out.println("\n=== MEDIATOR PATTERN ===");
-        ChannelMediator chat = new ChannelMediator();
-        User alice = new ChatUser(chat, "Alice");
-        User bob = new ChatUser(chat, "Bob");
-        User charlie = new ChatUser(chat, "Charlie");
-
-        chat.addUser(alice, "general");
-        chat.addUser(bob, "general");
-        chat.addUser(charlie, "music");
-
-        alice.send("Hello everyone!", "general");
-        bob.send("Hi Alice!", "general");
-        charlie.send("Anyone here loves music?", "music");
-
-        chat.removeUser(bob, "general");
-        alice.send("Bye Bob!", "general");
+    int capacity() {
+        return ids.length;
+    }
+}
+
+class ChunkedReportWriter implements AutoCloseable {
+    private final FileChannel channel;
+    private final ByteBuffer buffer;
+    private final byte[] digits = new byte[20];
+    private long flushed;
+
+    ChunkedReportWriter(Path target, int bufferSize) throws IOException {
+        if (bufferSize < 64) throw new IllegalArgumentException("Buffer must hold at least 64 bytes.");
+        this.channel = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        this.buffer = ByteBuffer.allocateDirect(bufferSize);
+    }
+
+    private void ensure(int bytes) throws IOException {
+        if (buffer.remaining() < bytes) flush();
+    }
+
+    ChunkedReportWriter put(char c) throws IOException {
+        ensure(1);
+        buffer.put((byte) c);
+        return this;
+    }
+
+    ChunkedReportWriter put(String text) throws IOException {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            put(c < 128 ? c : '?');
+        }
+        return this;
+    }
+
+    ChunkedReportWriter putLong(long value) throws IOException {
+        ensure(digits.length);
+        boolean negative = value < 0;
+        if (!negative) value = -value;
+        int n = digits.length;
+        do {
+            digits[--n] = (byte) ('0' - value % 10);
+            value /= 10;
+        } while (value != 0);
+        if (negative) digits[--n] = '-';
+        buffer.put(digits, n, digits.length - n);
+        return this;
+    }
+
+    ChunkedReportWriter putPadded(long value, int width) throws IOException {
+        if (value < 0 || width > digits.length) throw new IllegalArgumentException("Cannot pad " + value + " to " + width);
+        ensure(width);
+        for (int n = width; n > 0; value /= 10) digits[--n] = (byte) ('0' + value % 10);
+        buffer.put(digits, 0, width);
+        return this;
+    }
+
+    ChunkedReportWriter putCents(double amount) throws IOException {
+        long cents = Math.round(amount * 100);
+        if (cents < 0) {
+            put('-');
+            cents = -cents;
+        }
+        putLong(cents / 100).put('.');
+        return put((char) ('0' + cents % 100 / 10)).put((char) ('0' + cents % 10));
+    }
+
+    long position() {
+        return flushed + buffer.position();
+    }
+
+    // Copies the whole file after everything written so far.
+    ChunkedReportWriter append(Path file) throws IOException {
+        flush();
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = in.size();
+            for (long copied = 0; copied < size; ) copied += in.transferTo(copied, size - copied, channel);
+            flushed += size;
+        }
+        return this;
+    }
+
+    void flush() throws IOException {
+        buffer.flip();
+        flushed += buffer.remaining();
+        while (buffer.hasRemaining()) channel.write(buffer);
+        buffer.clear();
+    }
+
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            channel.close();
+        }
+    }
+}
+
+class PdfReport extends ReportGenerator {
+    void collectData() { Output.println("Collecting data for PDF..."); }
+    void formatData() { Output.println("Formatting PDF data..."); }
+    void createDocument() { Output.println("Creating PDF document..."); }
+    void saveReport() { Output.println("Saving PDF report..."); }
+
+    ReportDocument newDocument() throws IOException { return new PdfDocument(); }
+
+    // A minimal PDF: catalog (1) and font (3) up front, then per page a content stream, its
+    // length and the page itself (4+3p, 5+3p, 6+3p); the page tree (2) and the cross-reference
+    // table come last, once the page count is known. Every object from 3 on is written in
+    // number order, so its xref entry goes to a temporary file as it is written and is copied
+    // in at the end; memory stays constant however many pages the report has.
+    private static final class PdfDocument implements ReportDocument {
+        private static final int ROWS_PER_PAGE = 60;
+        private final Path xrefFile;
+        private final ChunkedReportWriter xref;
+        private long catalogOffset;
+        private int pages;
+        private int rowsOnPage;
+        private long contentStart;
+
+        PdfDocument() throws IOException {
+            xrefFile = Files.createTempFile("report-xref", ".tmp");
+            try {
+                xref = new ChunkedReportWriter(xrefFile, 1 << 16);
+            } catch (IOException | RuntimeException e) {
+                Files.deleteIfExists(xrefFile);
+                throw e;
+            }
+        }
+
+        private void beginObject(ChunkedReportWriter out, int number) throws IOException {
+            if (number == 1) catalogOffset = out.position();
+            else if (number > 2) xrefEntry(xref, out.position());
+            out.putLong(number).put(" 0 obj\n");
+        }
+
+        private static void xrefEntry(ChunkedReportWriter into, long offset) throws IOException {
+            into.putPadded(offset, 10).put(" 00000 n \n");
+        }
+
+        private void beginPage(ChunkedReportWriter out) throws IOException {
+            int content = 4 + 3 * pages;
+            beginObject(out, content);
+            out.put("<< /Length ").putLong(content + 1).put(" 0 R >>\nstream\n");
+            contentStart = out.position();
+            out.put("BT /F1 10 Tf 12 TL 36 756 Td\n");
+        }
+
+        private void endPage(ChunkedReportWriter out) throws IOException {
+            out.put("ET\n");
+            long length = out.position() - contentStart;
+            int content = 4 + 3 * pages;
+            out.put("endstream\nendobj\n");
+            beginObject(out, content + 1);
+            out.putLong(length).put("\nendobj\n");
+            beginObject(out, content + 2);
+            out.put("<< /Type /Page /Parent 2 0 R /MediaBox [0 0 612 792] /Resources << /Font << /F1 3 0 R >> >> /Contents ")
+                    .putLong(content).put(" 0 R >>\nendobj\n");
+            pages++;
+            rowsOnPage = 0;
+        }
+
+        public void begin(ChunkedReportWriter out) throws IOException {
+            out.put("%PDF-1.4\n");
+            beginObject(out, 1);
+            out.put("<< /Type /Catalog /Pages 2 0 R >>\nendobj\n");
+            beginObject(out, 3);
+            out.put("<< /Type /Font /Subtype /Type1 /BaseFont /Courier >>\nendobj\n");
+        }
+
+        public void formatRow(RowBatch batch, int row, ChunkedReportWriter out) throws IOException {
+            if (rowsOnPage == 0) beginPage(out);
+            out.put("(Row ").putLong(batch.ids[row]).put(" amount ").putCents(batch.amounts[row]).put(") '\n");
+            if (++rowsOnPage == ROWS_PER_PAGE) endPage(out);
+        }
+
+        public void end(ChunkedReportWriter out) throws IOException {
+            if (rowsOnPage > 0 || pages == 0) {
+                if (rowsOnPage == 0) beginPage(out);
+                endPage(out);
+            }
+            long pagesOffset = out.position();
+            out.putLong(2).put(" 0 obj\n<< /Type /Pages /Count ").putLong(pages).put(" /Kids [");
+            for (int p = 0; p < pages; p++) out.putLong(6 + 3 * p).put(" 0 R ");
+            out.put("] >>\nendobj\n");
+            int objects = 4 + 3 * pages;
+            long start = out.position();
+            out.put("xref\n0 ").putLong(objects).put("\n0000000000 65535 f \n");
+            xrefEntry(out, catalogOffset);
+            xrefEntry(out, pagesOffset);
+            xref.close();
+            out.append(xrefFile);
+            out.put("trailer\n<< /Size ").putLong(objects).put(" /Root 1 0 R >>\nstartxref\n").putLong(start).put("\n%%EOF\n");
+        }
+
+        public void close() throws IOException {
+            try {
+                xref.close();
+            } finally {
+                Files.deleteIfExists(xrefFile);
+            }
+        }
+    }
+}
+
+class ExcelReport extends ReportGenerator {
+    void collectData() { Output.println("Collecting data for Excel..."); }
+    void formatData() { Output.println("Formatting Excel cells..."); }
+    void createDocument() { Output.println("Creating Excel file..."); }
+    void saveReport() { Output.println("Saving Excel report..."); }
+    ReportDocument newDocument() { return DOCUMENT; }
+
+    private static final ReportDocument DOCUMENT = new ReportDocument() {
+        public void begin(ChunkedReportWriter out) throws IOException { out.put("\"id\";\"amount\"\r\n"); }
+        public void formatRow(RowBatch batch, int row, ChunkedReportWriter out) throws IOException {
+            out.putLong(batch.ids[row]).put(';').putCents(batch.amounts[row]).put('\r').put('\n');
+        }
+    };
+}
+
+class HtmlReport extends ReportGenerator {
+    void collectData() { Output.println("Collecting data for HTML..."); }
+    void formatData() { Output.println("Formatting HTML tags..."); }
+    void createDocument() { Output.println("Creating HTML page..."); }
+    void saveReport() { Output.println("Saving HTML file..."); }
+    boolean customerWantsSendEmail() { return true; }
+    ReportDocument newDocument() { return DOCUMENT; }
+
+    private static final ReportDocument DOCUMENT = new ReportDocument() {
+        public void begin(ChunkedReportWriter out) throws IOException {
+            out.put("<html><body><table>\n<tr><th>id</th><th>amount</th></tr>\n");
+        }
+        public void formatRow(RowBatch batch, int row, ChunkedReportWriter out) throws IOException {
+            out.put("<tr><td>").putLong(batch.ids[row]).put("</td><td>").putCents(batch.amounts[row]).put("</td></tr>\n");
+        }
+        public void end(ChunkedReportWriter out) throws IOException { out.put("</table></body></html>\n"); }
+    };
+}
+
+class ReportPipeline implements AutoCloseable {
+    private static final ReportStage[] STAGES = ReportStage.values();
+    private static final Job POISON = new Job(null);
+
+    private static final class Job {
+        final ReportGenerator report;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        Job(ReportGenerator report) {
+            this.report = report;
+        }
+    }
+
+    private final List<BlockingQueue<Job>> queues = new ArrayList<>();
+    private final List<List<Thread>> workers = new ArrayList<>();
+    private final LongAdder[] completed = new LongAdder[STAGES.length];
+    private final LongAdder[] busyNanos = new LongAdder[STAGES.length];
+    private final LatencyHistogram[] latencies = new LatencyHistogram[STAGES.length];
+    private final List<Metrics.Registration> gauges = new ArrayList<>();
+    private final long startNanos = System.nanoTime();
+    // Submitters share the read side; close() takes the write side, so no job can land in the
+    // first queue behind the poison pills.
+    private final ReadWriteLock lifecycle = new ReentrantReadWriteLock();
+    private boolean closed;
+
+    public ReportPipeline(int queueCapacity, int... parallelism) {
+        if (parallelism.length != STAGES.length) {
+            throw new IllegalArgumentException("Expected parallelism for " + STAGES.length + " stages, got " + parallelism.length);
+        }
+        for (int i = 0; i < STAGES.length; i++) {
+            if (parallelism[i] < 1) throw new IllegalArgumentException("Stage parallelism must be positive.");
+            queues.add(new ArrayBlockingQueue<>(queueCapacity));
+            completed[i] = new LongAdder();
+            busyNanos[i] = new LongAdder();
+            String stageName = STAGES[i].name().toLowerCase();
+            latencies[i] = Metrics.histogram("report.stage." + stageName);
+            BlockingQueue<Job> queue = queues.get(i);
+            gauges.add(Metrics.gauge("report.stage." + stageName + ".queued", queue::size));
+        }
+        for (int i = 0; i < STAGES.length; i++) {
+            List<Thread> stageWorkers = new ArrayList<>();
+            for (int w = 0; w < parallelism[i]; w++) {
+                int stage = i;
+                Thread t = new Thread(() -> work(stage), "report-" + STAGES[i].name().toLowerCase() + "-" + w);
+                t.setDaemon(true);
+                stageWorkers.add(t);
+                t.start();
+            }
+            workers.add(stageWorkers);
+        }
+    }
+
+    public CompletableFuture<Void> submit(ReportGenerator report) throws InterruptedException {
+        Job job = new Job(report);
+        lifecycle.readLock().lockInterruptibly();
+        try {
+            if (closed) throw new IllegalStateException("Report pipeline is closed.");
+            queues.get(0).put(job);
+        } finally {
+            lifecycle.readLock().unlock();
+        }
+        return job.done;
+    }
+
+    private void work(int stage) {
+        BlockingQueue<Job> in = queues.get(stage);
+        BlockingQueue<Job> out = stage + 1 < STAGES.length ? queues.get(stage + 1) : null;
+        try {
+            while (true) {
+                Job job = in.take();
+                if (job == POISON) return;
+                long start = System.nanoTime();
+                try {
+                    job.report.runStage(STAGES[stage]);
+                } catch (Throwable e) {
+                    job.done.completeExceptionally(e);
+                    continue;
+                } finally {
+                    long elapsed = System.nanoTime() - start;
+                    busyNanos[stage].add(elapsed);
+                    if (Metrics.ENABLED) latencies[stage].record(elapsed);
+                }
+                completed[stage].increment();
+                if (out == null) job.done.complete(null);
+                else out.put(job);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public long completed(ReportStage stage) {
+        return completed[stage.ordinal()].sum();
+    }
+
+    public int queued(ReportStage stage) {
+        return queues.get(stage.ordinal()).size();
+    }
+
+    public double throughput(ReportStage stage) {
+        return completed(stage) * 1e9 / (System.nanoTime() - startNanos);
+    }
+
+    public double utilization(ReportStage stage) {
+        return busyNanos[stage.ordinal()].sum() / ((System.nanoTime() - startNanos) * (double) workers.get(stage.ordinal()).size());
+    }
+
+    public void close() {
+        lifecycle.writeLock().lock();
+        try {
+            if (closed) return;
+            closed = true;
+        } finally {
+            lifecycle.writeLock().unlock();
+        }
+        for (Metrics.Registration gauge : gauges) gauge.close();
+        try {
+            for (int i = 0; i < STAGES.length; i++) {
+                for (int w = 0; w < workers.get(i).size(); w++) queues.get(i).put(POISON);
+                for (Thread t : workers.get(i)) t.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
+
+interface IMediator {
+    void sendMessage(String message, User user, String channelName);
+    void addUser(User user, String channelName);
+    void removeUser(User user, String channelName);
+}
+
+final class MessageEnvelope {
+    private final String message;
+    private final User sender;
+    private final String channelName;
+    private volatile Encoded encoded;
+
+    private static final class Encoded {
+        final Function<MessageEnvelope, byte[]> encoding;
+        final byte[] bytes;
+        final Encoded next;
+
+        Encoded(Function<MessageEnvelope, byte[]> encoding, byte[] bytes, Encoded next) {
+            this.encoding = encoding;
+            this.bytes = bytes;
+            this.next = next;
+        }
+    }
+
+    MessageEnvelope(String message, User sender, String channelName) {
+        this.message = message;
+        this.sender = sender;
+        this.channelName = channelName;
+    }
+
+    public String message() { return message; }
+    public User sender() { return sender; }
+    public String channelName() { return channelName; }
+
+    // Encodes on first use and shares the bytes with every recipient on the same transport;
+    // a channel mixing transports keeps one entry per encoding. Two threads racing on a miss
+    // may both encode, which only costs the duplicate work. The returned array must not be
+    // modified.
+    byte[] encoded(Function<MessageEnvelope, byte[]> encoding) {
+        Encoded first = encoded;
+        for (Encoded e = first; e != null; e = e.next) {
+            if (e.encoding == encoding) return e.bytes;
+        }
+        byte[] bytes = encoding.apply(this);
+        encoded = new Encoded(encoding, bytes, first);
+        return bytes;
+    }
+}
+
+class Broadcast {
+    final MessageEnvelope envelope;
+    final User[] recipients;
+
+    Broadcast(MessageEnvelope envelope, User[] recipients) {
+        this.envelope = envelope;
+        this.recipients = recipients;
+    }
+}
+
+class Mailbox implements Runnable {
+    static final int OFFERED = 0, DROPPED = 1, RETIRED = 2;
+    private static final int BATCH = 64;
+
+    private final User owner;
+    private final DeliveryPipeline pipeline;
+    private final int capacity;
+    private final boolean spill;
+    private final Queue<MessageEnvelope> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private volatile boolean retired;
+
+    // Under BLOCK a full mailbox spills instead of blocking the fan-out thread; the pipeline
+    // holds publishers back until every mailbox is under capacity again.
+    Mailbox(User owner, DeliveryPipeline pipeline, int capacity, OverflowPolicy policy) {
+        this.owner = owner;
+        this.pipeline = pipeline;
+        this.capacity = capacity;
+        this.spill = policy == OverflowPolicy.BLOCK;
+    }
+
+    // An offer that races retire() and misses it still lands in a queue that gets drained.
+    int offer(MessageEnvelope envelope) {
+        int count = size.incrementAndGet();
+        if (retired) {
+            size.decrementAndGet();
+            return RETIRED;
+        }
+        if (count > capacity) {
+            if (!spill) {
+                size.decrementAndGet();
+                return DROPPED;
+            }
+            if (count == capacity + 1) pipeline.overfull();
+        }
+        queue.add(envelope);
+        if (scheduled.compareAndSet(false, true)) pipeline.schedule(this);
+        return OFFERED;
+    }
+
+    // Refuses further offers; whatever is already queued is still delivered.
+    void retire() {
+        retired = true;
+    }
+
+    public void run() {
+        int count = 0;
+        MessageEnvelope envelope;
+        while (count < BATCH && (envelope = queue.poll()) != null) {
+            count++;
+            try {
+                owner.receive(envelope);
+            } catch (Throwable e) {
+                Output.println(owner.getName(), " failed to receive: ", e);
+            }
+        }
+        int before = size.getAndAdd(-count);
+        if (spill && before > capacity && before - count <= capacity) pipeline.drained();
+        pipeline.delivered(count);
+        scheduled.set(false);
+        if (!queue.isEmpty() && scheduled.compareAndSet(false, true)) pipeline.schedule(this);
+    }
+}
+
+class DeliveryPipeline implements AutoCloseable {
+    private static final Broadcast SHUTDOWN = new Broadcast(null, null);
+
+    private final List<BlockingQueue<Broadcast>> fanOutQueues = new ArrayList<>();
+    private final List<Thread> fanOutThreads = new ArrayList<>();
+    private final ExecutorService dispatchers;
+    private final Map<User, Mailbox> mailboxes = new ConcurrentHashMap<>();
+    private final int mailboxCapacity;
+    private final OverflowPolicy policy;
+    private final AtomicLong pending = new AtomicLong();
+    private final AtomicInteger overfull = new AtomicInteger();
+    private final LongAdder dropped = new LongAdder();
+    private final Metrics.Registration pendingGauge, droppedGauge;
+    private volatile boolean closing;
+
+    public DeliveryPipeline(int dispatcherThreads, int fanOutCapacity, int mailboxCapacity, OverflowPolicy policy) {
+        this.mailboxCapacity = mailboxCapacity;
+        this.policy = policy;
+        AtomicInteger count = new AtomicInteger();
+        this.dispatchers = Executors.newFixedThreadPool(dispatcherThreads, r -> {
+            Thread t = new Thread(r, "chat-dispatch-" + count.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        });
+        for (int i = 0; i < dispatcherThreads; i++) {
+            BlockingQueue<Broadcast> queue = new ArrayBlockingQueue<>(fanOutCapacity);
+            Thread t = new Thread(() -> fanOut(queue), "chat-fanout-" + i);
+            t.setDaemon(true);
+            fanOutQueues.add(queue);
+            fanOutThreads.add(t);
+            t.start();
+        }
+        pendingGauge = Metrics.gauge("chat.pipeline.pending", this::pending);
+        droppedGauge = Metrics.gauge("chat.pipeline.dropped", this::dropped);
+    }
+
+    public void publish(User[] recipients, MessageEnvelope envelope) {
+        Broadcast broadcast = new Broadcast(envelope, recipients);
+        BlockingQueue<Broadcast> queue = fanOutQueues.get((envelope.channelName().hashCode() & 0x7fffffff) % fanOutQueues.size());
+        pending.incrementAndGet();
+        if (closing) {
+            release(1);
+            throw new IllegalStateException("Delivery pipeline is closed.");
+        }
+        try {
+            if (policy == OverflowPolicy.BLOCK) {
+                if (overfull.get() > 0) awaitCapacity();
+                queue.put(broadcast);
+            } else if (!queue.offer(broadcast)) {
+                release(1);
+                dropped.add(recipients.length);
+            }
+        } catch (InterruptedException e) {
+            release(1);
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void fanOut(BlockingQueue<Broadcast> queue) {
+        try {
+            while (true) {
+                Broadcast broadcast = queue.take();
+                if (broadcast == SHUTDOWN) return;
+                for (User recipient : broadcast.recipients) {
+                    if (recipient == broadcast.envelope.sender()) continue;
+                    pending.incrementAndGet();
+                    int result = Mailbox.RETIRED;
+                    for (Mailbox mailbox; result == Mailbox.RETIRED && (mailbox = mailboxes.get(recipient)) != null; ) {
+                        result = mailbox.offer(broadcast.envelope);
+                    }
+                    if (result != Mailbox.OFFERED) {
+                        release(1);
+                        if (result == Mailbox.DROPPED) dropped.increment();
+                    }
+                }
+                release(1);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // The mediator registers a user on joining a first channel and forgets them on leaving the
+    // last one; recipients without a mailbox have left and are skipped by the fan-out.
+    void register(User user) {
+        mailboxes.computeIfAbsent(user, u -> new Mailbox(u, this, mailboxCapacity, policy));
+    }
+
+    void forget(User user) {
+        mailboxes.computeIfPresent(user, (u, mailbox) -> {
+            mailbox.retire();
+            return null;
+        });
+    }
+
+    void schedule(Mailbox mailbox) {
+        dispatchers.execute(mailbox);
+    }
+
+    void delivered(int count) {
+        if (count > 0) release(count);
+    }
+
+    void overfull() {
+        overfull.incrementAndGet();
+    }
+
+    void drained() {
+        if (overfull.decrementAndGet() == 0) {
+            synchronized (this) {
+                notifyAll();
+            }
+        }
+    }
+
+    private void release(long count) {
+        if (pending.addAndGet(-count) == 0 && closing) {
+            synchronized (this) {
+                notifyAll();
+            }
+        }
+    }
+
+    private synchronized void awaitCapacity() throws InterruptedException {
+        while (overfull.get() > 0) wait();
+    }
+
+    public long pending() {
+        return pending.get();
+    }
+
+    public long dropped() {
+        return dropped.sum();
+    }
+
+    public void close() {
+        closing = true;
+        pendingGauge.close();
+        droppedGauge.close();
+        try {
+            synchronized (this) {
+                while (pending.get() > 0) wait();
+            }
+            for (BlockingQueue<Broadcast> queue : fanOutQueues) queue.put(SHUTDOWN);
+            for (Thread t : fanOutThreads) t.join();
+            dispatchers.shutdown();
+            dispatchers.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
+
+class ChatChannel {
+    private final Set<User> members = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger version = new AtomicInteger();
+    private volatile Snapshot snapshot = new Snapshot(0, new User[0]);
+
+    // A snapshot is only served while no add or remove has completed since it was taken,
+    // so a sender never misses a member whose join returned before the send.
+    private static final class Snapshot {
+        final int version;
+        final User[] members;
+
+        Snapshot(int version, User[] members) {
+            this.version = version;
+            this.members = members;
+        }
+    }
+
+    boolean add(User user) {
+        if (!members.add(user)) return false;
+        version.incrementAndGet();
+        return true;
+    }
+
+    boolean remove(User user) {
+        if (!members.remove(user)) return false;
+        version.incrementAndGet();
+        return true;
+    }
+
+    User[] snapshot() {
+        Snapshot current = snapshot;
+        if (current.version == version.get()) return current.members;
+        synchronized (this) {
+            current = snapshot;
+            int v = version.get();
+            if (current.version != v) snapshot = current = new Snapshot(v, members.toArray(new User[0]));
+            return current.members;
+        }
+    }
+}
+
+class ChannelMediator implements IMediator {
+    private static final LatencyHistogram SEND_LATENCY = Metrics.histogram("chat.sendMessage");
+    private static final LongAdder UNKNOWN_CHANNEL = Metrics.counter("chat.sendMessage.unknownChannel");
+
+    private final Map<String, ChatChannel> channels = new ConcurrentHashMap<>();
+    // Channels each user is in, kept for the pipeline so a leave need not scan every channel.
+    private final Map<User, Integer> memberships = new ConcurrentHashMap<>();
+    private final DeliveryPipeline pipeline;
+
+    public ChannelMediator() {
+        this(null);
+    }
+
+    public ChannelMediator(DeliveryPipeline pipeline) {
+        this.pipeline = pipeline;
+    }
+
+    public void sendMessage(String message, User user, String channelName) {
+        long start = Metrics.ENABLED ? System.nanoTime() : 0;
+        ChatChannel channel = channels.get(channelName);
+        if (channel == null) {
+            if (Metrics.ENABLED) UNKNOWN_CHANNEL.increment();
+            Output.println("Channel ", channelName, " does not exist.");
+            return;
+        }
+        MessageEnvelope envelope = new MessageEnvelope(message, user, channelName);
+        if (pipeline != null) {
+            pipeline.publish(channel.snapshot(), envelope);
+        } else {
+            for (User u : channel.snapshot()) {
+                if (u != user) u.receive(envelope);
+            }
+        }
+        if (Metrics.ENABLED) SEND_LATENCY.recordSince(start);
+    }
+
+    public void addUser(User user, String channelName) {
+        if (pipeline != null) {
+            memberships.compute(user, (u, count) -> {
+                if (count == null) pipeline.register(u);
+                return count == null ? 1 : count + 1;
+            });
+        }
+        if (channels.computeIfAbsent(channelName, name -> new ChatChannel()).add(user)) {
+            Output.println(user.getName(), " joined channel ", channelName);
+        } else if (pipeline != null) {
+            left(user);
+        }
+    }
+
+    public void removeUser(User user, String channelName) {
+        ChatChannel channel = channels.get(channelName);
+        if (channel != null && channel.remove(user)) {
+            Output.println(user.getName(), " left channel ", channelName);
+            if (pipeline != null) left(user);
+        }
+    }
+
+    private void left(User user) {
+        memberships.computeIfPresent(user, (u, count) -> {
+            if (count > 1) return count - 1;
+            pipeline.forget(u);
+            return null;
+        });
+    }
+}
+
+class RemoteControlStress {
+    static class Counter {
+        final AtomicInteger state = new AtomicInteger();
+        volatile int lowest;
+    }
+
+    static void run() throws InterruptedException {
+        int devices = 16, threads = 4, actionsPerThread = 20_000;
+        RemoteControl remote = new RemoteControl(threads * actionsPerThread, null, 0);
+        StripedCommandExecutor executor = new StripedCommandExecutor(4);
+        remote.setExecutor(executor);
+        Counter[] counters = new Counter[devices];
+        for (int d = 0; d < devices; d++) {
+            Counter counter = counters[d] = new Counter();
+            remote.setCommand("device" + d, new ICommand() {
+                public void execute() { counter.state.incrementAndGet(); }
+                public void undo() { counter.lowest = Math.min(counter.lowest, counter.state.decrementAndGet()); }
+                public Object receiver() { return counter; }
+            });
+        }
+        Queue<CompletableFuture<Void>> futures = new ConcurrentLinkedQueue<>();
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int seed = t;
+            workers.add(new Thread(() -> {
+                Random random = new Random(seed);
+                for (int i = 0; i < actionsPerThread; i++) {
+                    int action = random.nextInt(4);
+                    if (action < 2) futures.add(remote.pressButtonAsync("device" + random.nextInt(devices)));
+                    else if (action == 2) futures.add(remote.undoAsync());
+                    else futures.add(remote.redoAsync());
+                }
+            }));
+        }
+        for (Thread t : workers) t.start();
+        for (Thread t : workers) t.join();
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).join();
+        for (int i = 0; i < threads * actionsPerThread; i++) remote.undo();
+        executor.close();
+        for (int d = 0; d < devices; d++) {
+            if (counters[d].lowest < 0 || counters[d].state.get() != 0) {
+                throw new AssertionError("device" + d + " saw undo before execute or ended at " + counters[d].state.get());
+            }
+        }
+    }
+}
+
+class CommandBatcherStress {
+    static class Switch {
+        boolean on;
+    }
+
+    static ICommand turn(Switch device, boolean on) {
+        return new ICommand() {
+            public void execute() { device.on = on; }
+            public void undo() { device.on = !on; }
+            public Object receiver() { return device; }
+        };
+    }
+
+    // Batched and unbatched presses must leave every device in the same state, starting from
+    // random device states rather than all-off.
+    static void run() {
+        int devices = 4, rounds = 5_000;
+        Switch[] direct = new Switch[devices], batched = new Switch[devices];
+        RemoteControl directRemote = new RemoteControl(64, null, 0), batchedRemote = new RemoteControl(64, null, 0);
+        List<String> slots = new ArrayList<>();
+        for (int d = 0; d < devices; d++) {
+            direct[d] = new Switch();
+            batched[d] = new Switch();
+            for (boolean on : new boolean[] { true, false }) {
+                String slot = (on ? "on" : "off") + d;
+                directRemote.setCommand(slot, turn(direct[d], on));
+                batchedRemote.setCommand(slot, turn(batched[d], on));
+                slots.add(slot);
+            }
+        }
+        directRemote.setCommand("scene", new MacroCommand(List.of(turn(direct[0], false), turn(direct[1], true))));
+        batchedRemote.setCommand("scene", new MacroCommand(List.of(turn(batched[0], false), turn(batched[1], true))));
+        slots.add("scene");
+        Random random = new Random(17);
+        try (CommandBatcher batcher = new CommandBatcher(batchedRemote, 64, 60_000)) {
+            for (int round = 0; round < rounds; round++) {
+                for (int d = 0; d < devices; d++) direct[d].on = batched[d].on = random.nextBoolean();
+                List<String> presses = new ArrayList<>();
+                for (int i = random.nextInt(12) + 1; i > 0; i--) presses.add(slots.get(random.nextInt(slots.size())));
+                for (String slot : presses) {
+                    directRemote.pressButton(slot);
+                    batcher.press(slot);
+                }
+                batcher.flush();
+                for (int d = 0; d < devices; d++) {
+                    if (direct[d].on != batched[d].on) throw new AssertionError("device" + d + " differs after " + presses);
+                }
+            }
+        }
+    }
+}
+
+class ChannelMediatorStress {
+    static void run(DeliveryPipeline pipeline) throws InterruptedException {
+        int senders = 4, messagesPerSender = 20_000, stableMembers = 64, churners = 4;
+        int total = senders * messagesPerSender;
+        ChannelMediator mediator = new ChannelMediator(pipeline);
+        List<AtomicIntegerArray> deliveries = new ArrayList<>();
+        List<User> members = new ArrayList<>();
+        for (int i = 0; i < stableMembers; i++) {
+            AtomicIntegerArray seen = new AtomicIntegerArray(total);
+            User member = new User(mediator, "member" + i) {
+                public void send(String message, String channelName) { mediator.sendMessage(message, this, channelName); }
+                public void receive(String message, User sender, String channelName) { seen.incrementAndGet(Integer.parseInt(message)); }
+            };
+            deliveries.add(seen);
+            members.add(member);
+            mediator.addUser(member, "stress");
+        }
+        AtomicBoolean sending = new AtomicBoolean(true);
+        List<Thread> threads = new ArrayList<>();
+        for (int c = 0; c < churners; c++) {
+            int id = c;
+            threads.add(new Thread(() -> {
+                User churner = new User(mediator, "churn" + id) {
+                    public void send(String message, String channelName) { }
+                    public void receive(String message, User sender, String channelName) { }
+                };
+                while (sending.get()) {
+                    mediator.addUser(churner, "stress");
+                    mediator.removeUser(churner, "stress");
+                }
+            }));
+        }
+        List<Thread> senderThreads = new ArrayList<>();
+        for (int s = 0; s < senders; s++) {
+            int first = s * messagesPerSender;
+            User sender = members.get(s);
+            senderThreads.add(new Thread(() -> {
+                for (int m = first; m < first + messagesPerSender; m++) sender.send(Integer.toString(m), "stress");
+            }));
+        }
+        threads.addAll(senderThreads);
+        for (Thread t : threads) t.start();
+        for (Thread t : senderThreads) t.join();
+        sending.set(false);
+        for (Thread t : threads) t.join();
+        if (pipeline != null) pipeline.close();
+
+        long errors = 0;
+        for (int i = 0; i < stableMembers; i++) {
+            AtomicIntegerArray seen = deliveries.get(i);
+            for (int m = 0; m < total; m++) {
+                int expected = i < senders && m / messagesPerSender == i ? 0 : 1;
+                if (seen.get(m) != expected) errors++;
+            }
+        }
+        if (errors > 0) throw new AssertionError(errors + " lost or duplicate deliveries");
+    }
+}
+
+abstract class User {
+    protected IMediator mediator;
+    protected String name;
+
+    public User(IMediator mediator, String name) {
+        this.mediator = mediator;
+        this.name = name;
+    }
+
+    public String getName() { return name; }
+
+    public abstract void send(String message, String channelName);
+    public abstract void receive(String message, User sender, String channelName);
+
+    public void receive(MessageEnvelope envelope) {
+        receive(envelope.message(), envelope.sender(), envelope.channelName());
+    }
+}
+
+class ChatUser extends User {
+    // The part of a console line every recipient shares; built once per broadcast.
+    static final Function<MessageEnvelope, byte[]> CONSOLE_LINE = envelope -> (" receives from "
+            + envelope.sender().getName() + " in " + envelope.channelName() + ": " + envelope.message())
+            .getBytes(StandardCharsets.UTF_8);
+
+    private final byte[] encodedName;
+
+    public ChatUser(IMediator mediator, String name) {
+        super(mediator, name);
+        this.encodedName = name.getBytes(StandardCharsets.UTF_8);
+    }
+
+    public void send(String message, String channelName) {
+        Output.println(name, " sends message in ", channelName, ": ", message);
+        mediator.sendMessage(message, this, channelName);
+    }
+
+    public void receive(String message, User sender, String channelName) {
+        Output.println(name, " receives from ", sender.getName(), " in ", channelName, ": ", message);
+    }
+
+    // Writes the recipient's name and the shared bytes, so a broadcast formats its line once
+    // instead of once per member.
+    public void receive(MessageEnvelope envelope) {
+        Output.println(encodedName, envelope.encoded(CONSOLE_LINE));
+    }
+}
+
+class RemoteUser extends User {
+    private final ChatConnection connection;
+
+    RemoteUser(IMediator mediator, String name, ChatConnection connection) {
+        super(mediator, name);
+        this.connection = connection;
+    }
+
+    public void send(String message, String channelName) {
+        mediator.sendMessage(message, this, channelName);
+    }
+
+    public void receive(String message, User sender, String channelName) {
+        receive(new MessageEnvelope(message, sender, channelName));
+    }
+
+    public void receive(MessageEnvelope envelope) {
+        connection.deliver(envelope);
+    }
+}
+
+class ChatConnection {
+    private static final long MAX_QUEUED_BYTES = 4 << 20;
+
+    private final ChatServer server;
+    private final SocketChannel channel;
+    private final SelectionKey key;
+    private final ByteBuffer in = ByteBuffer.allocate(ChatServer.MAX_FRAME + 4);
+    private final Queue<ByteBuffer> out = new ConcurrentLinkedQueue<>();
+    private final AtomicLong queuedBytes = new AtomicLong();
+    private final AtomicBoolean writeRequested = new AtomicBoolean();
+    private final Set<String> joined = new HashSet<>();
+    private RemoteUser user;
+    private volatile boolean closed;
+
+    ChatConnection(ChatServer server, SocketChannel channel, Selector selector, int id) throws IOException {
+        this.server = server;
+        this.channel = channel;
+        this.key = channel.register(selector, SelectionKey.OP_READ, this);
+        this.user = new RemoteUser(server.mediator, "guest-" + id, this);
+    }
+
+    void read() throws IOException {
+        if (channel.read(in) < 0) throw new EOFException();
+        in.flip();
+        while (in.remaining() >= 4) {
+            int length = in.getInt(in.position());
+            if (length < 1 || length > ChatServer.MAX_FRAME) throw new IOException("Bad frame length " + length);
+            if (in.remaining() < 4 + length) break;
+            in.getInt();
+            byte type = in.get();
+            String payload = new String(in.array(), in.position(), length - 1, StandardCharsets.UTF_8);
+            in.position(in.position() + length - 1);
+            handle(type, payload);
+        }
+        in.compact();
+    }
+
+    private void handle(byte type, String payload) throws IOException {
+        switch (type) {
+            case ChatServer.HELLO:
+                if (!joined.isEmpty()) throw new IOException("HELLO after JOIN");
+                user = new RemoteUser(server.mediator, payload, this);
+                break;
+            case ChatServer.JOIN:
+                if (joined.add(payload)) server.mediator.addUser(user, payload);
+                break;
+            case ChatServer.LEAVE:
+                if (joined.remove(payload)) server.mediator.removeUser(user, payload);
+                break;
+            case ChatServer.SEND:
+                int split = payload.indexOf('\0');
+                if (split < 0) throw new IOException("SEND frame without channel separator");
+                // The MESSAGE frame relayed to members prepends the sender's name and a NUL.
+                if (1 + ChatServer.utf8Length(user.getName()) + 1 + ChatServer.utf8Length(payload) > ChatServer.MAX_FRAME) {
+                    throw new IOException("SEND frame too long to relay as MESSAGE");
+                }
+                user.send(payload.substring(split + 1), payload.substring(0, split));
+                break;
+            default:
+                throw new IOException("Unknown frame type " + type);
+        }
+    }
+
+    void deliver(MessageEnvelope envelope) {
+        if (closed) return;
+        if (queuedBytes.get() > MAX_QUEUED_BYTES) {
+            server.dropped.increment();
+            return;
+        }
+        byte[] frame = envelope.encoded(ChatServer.MESSAGE_FRAME);
+        queuedBytes.addAndGet(frame.length);
+        out.add(ByteBuffer.wrap(frame));
+        if (writeRequested.compareAndSet(false, true)) server.requestWrite(this);
+    }
+
+    void enableWrite() {
+        if (key.isValid()) key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+    }
+
+    void flush() throws IOException {
+        ByteBuffer frame;
+        while ((frame = out.peek()) != null) {
+            long written = channel.write(frame);
+            queuedBytes.addAndGet(-written);
+            if (frame.hasRemaining()) return;
+            out.poll();
+        }
+        key.interestOps(SelectionKey.OP_READ);
+        writeRequested.set(false);
+        if (!out.isEmpty() && writeRequested.compareAndSet(false, true)) enableWrite();
+    }
+
+    void close() {
+        if (closed) return;
+        closed = true;
+        for (String channelName : joined) server.mediator.removeUser(user, channelName);
+        joined.clear();
+        out.clear();
+        key.cancel();
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
+
+class ChatServer implements Runnable, AutoCloseable {
+    static final byte HELLO = 1, JOIN = 2, LEAVE = 3, SEND = 4, MESSAGE = 5;
+    static final int MAX_FRAME = 64 * 1024;
+    // MESSAGE payload: sender, channel and text separated by NUL, mirroring SEND's channel NUL text.
+    static final Function<MessageEnvelope, byte[]> MESSAGE_FRAME = envelope -> frameBytes(MESSAGE,
+            envelope.sender().getName() + '\0' + envelope.channelName() + '\0' + envelope.message());
+
+    final IMediator mediator;
+    final LongAdder dropped = new LongAdder();
+    private final Selector selector;
+    private final ServerSocketChannel server;
+    private final Queue<ChatConnection> writeRequests = new ConcurrentLinkedQueue<>();
+    private volatile boolean running = true;
+    private volatile Thread loopThread;
+    private int connections;
+
+    public ChatServer(IMediator mediator, int port) throws IOException {
+        this.mediator = mediator;
+        this.selector = Selector.open();
+        this.server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(port), 4096);
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    public int port() throws IOException {
+        return ((InetSocketAddress) server.getLocalAddress()).getPort();
+    }
+
+    public void run() {
+        loopThread = Thread.currentThread();
+        try {
+            while (running) {
+                selector.select();
+                ChatConnection pending;
+                while ((pending = writeRequests.poll()) != null) pending.enableWrite();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) continue;
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    ChatConnection connection = (ChatConnection) key.attachment();
+                    try {
+                        if (key.isReadable()) connection.read();
+                        if (key.isValid() && key.isWritable()) connection.flush();
+                    } catch (IOException e) {
+                        connection.close();
+                    } catch (RuntimeException e) {
+                        Output.println("Closing connection after handler failure: ", e);
+                        connection.close();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            Output.println("Chat server stopped: ", e.getMessage());
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof ChatConnection) ((ChatConnection) key.attachment()).close();
+            }
+            try {
+                selector.close();
+                server.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = server.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            new ChatConnection(this, channel, selector, ++connections);
+        }
+    }
+
+    void requestWrite(ChatConnection connection) {
+        if (Thread.currentThread() == loopThread) {
+            connection.enableWrite();
+        } else {
+            writeRequests.add(connection);
+            selector.wakeup();
+        }
+    }
+
+    static ByteBuffer frame(byte type, String payload) {
+        return ByteBuffer.wrap(frameBytes(type, payload));
+    }
+
+    // Bytes getBytes(UTF_8) produces, or more for a lone surrogate; never fewer.
+    static int utf8Length(String text) {
+        int length = 0;
+        for (int i = 0, n = text.length(); i < n; i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) length += 1;
+            else if (c < 0x800) length += 2;
+            else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(text.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else length += 3;
+        }
+        return length;
+    }
+
+    private static byte[] frameBytes(byte type, String payload) {
+        byte[] bytes = payload.getBytes(StandardCharsets.UTF_8);
+        return ByteBuffer.allocate(5 + bytes.length).putInt(bytes.length + 1).put(type).put(bytes).array();
+    }
+
+    public void close() {
+        running = false;
+        selector.wakeup();
+    }
+}
+
+class ChatLoadGenerator {
+    static void run(int connections, int channels, int seconds) throws Exception {
+        DeliveryPipeline pipeline = new DeliveryPipeline(2, 1024, 4096, OverflowPolicy.BLOCK);
+        ChatServer server = new ChatServer(new ChannelMediator(pipeline), 0);
+        Thread serverThread = new Thread(server, "chat-server");
+        serverThread.setDaemon(true);
+        serverThread.start();
+        InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), server.port());
+
+        Selector selector = Selector.open();
+        for (int i = 0; i < connections; i++) {
+            SocketChannel client = SocketChannel.open(address);
+            writeFully(client, ChatServer.frame(ChatServer.HELLO, "load-" + i));
+            writeFully(client, ChatServer.frame(ChatServer.JOIN, "room-" + i % channels));
+            client.configureBlocking(false);
+            client.register(selector, SelectionKey.OP_READ, ByteBuffer.allocate(ChatServer.MAX_FRAME + 4));
+        }
+        SocketChannel sender = SocketChannel.open(address);
+        sender.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        writeFully(sender, ChatServer.frame(ChatServer.HELLO, "load-sender"));
+        Thread.sleep(200);
+
+        long[] latencies = new long[1 << 20];
+        AtomicLong received = new AtomicLong();
+        AtomicBoolean done = new AtomicBoolean();
+        Thread reader = new Thread(() -> {
+            try {
+                while (!done.get()) {
+                    selector.select(100);
+                    for (SelectionKey key : selector.selectedKeys()) {
+                        ByteBuffer in = (ByteBuffer) key.attachment();
+                        if (((SocketChannel) key.channel()).read(in) < 0) key.cancel();
+                        in.flip();
+                        long now = System.nanoTime();
+                        while (in.remaining() >= 4 && in.remaining() >= 4 + in.getInt(in.position())) {
+                            int end = in.position() + 4 + in.getInt();
+                            long sample = received.getAndIncrement();
+                            if (sample < latencies.length) latencies[(int) sample] = now - sentAt(in, end);
+                            in.position(end);
+                        }
+                        in.compact();
+                    }
+                    selector.selectedKeys().clear();
+                }
+            } catch (IOException e) {
+                System.err.println("Load generator reader failed: " + e);
+            }
+        }, "chat-load-reader");
+        reader.start();
+
+        int membersPerChannel = connections / channels;
+        long window = 64L * membersPerChannel;
+        long sent = 0;
+        long start = System.nanoTime(), deadline = start + seconds * 1_000_000_000L;
+        while (System.nanoTime() < deadline) {
+            long waitUntil = System.nanoTime() + 100_000_000L;
+            while (sent * membersPerChannel - received.get() > window && System.nanoTime() < waitUntil) Thread.yield();
+            String channelName = "room-" + sent % channels;
+            writeFully(sender, ChatServer.frame(ChatServer.SEND, channelName + '\0' + "t" + System.nanoTime()));
+            sent++;
+        }
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        Thread.sleep(500);
+        done.set(true);
+        reader.join();
+        server.close();
+
+        int samples = (int) Math.min(received.get(), latencies.length);
+        long[] sorted = Arrays.copyOf(latencies, samples);
+        Arrays.sort(sorted);
+        System.err.printf("connections=%d channels=%d sent=%d (%.0f msg/s) delivered=%d (%.0f msg/s) dropped=%d%n",
+                connections, channels, sent, sent / elapsed, received.get(), received.get() / elapsed, server.dropped.sum());
+        if (samples > 0) {
+            System.err.printf("latency p50=%.1f us p99=%.1f us p99.9=%.1f us%n", sorted[samples / 2] / 1e3,
+                    sorted[(int) (samples * 0.99)] / 1e3, sorted[(int) (samples * 0.999)] / 1e3);
+        }
+    }
+
+    private static long sentAt(ByteBuffer in, int end) {
+        int i = end - 1;
+        while (in.get(i) < '0' || in.get(i) > '9') i--;
+        long value = 0, scale = 1;
+        for (; in.get(i) != 't'; i--, scale *= 10) value += (in.get(i) - '0') * scale;
+        return value;
+    }
+
+    private static void writeFully(SocketChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) channel.write(buffer);
+    }
+}
+
+class Benchmarks extends BenchmarkHarness {
+    static void main(String[] args) throws Exception {
+        execute(args, Benchmarks::run);
+    }
+
+    private static void run() throws Exception {
+        report.println("# metrics " + (Metrics.ENABLED ? "enabled" : "disabled") + " (-Dmetrics.enabled)");
+        Light light = new Light();
+        TV tv = new TV();
+        RemoteControl remote = new RemoteControl();
+        remote.setCommand("lightOn", new LightOnCommand(light));
+        remote.setCommand("tvOn", new TVOnCommand(tv));
+        measure("RemoteControl.pressButton+undo", 1_000_000, ops -> {
+            for (int i = 0; i < ops; i++) {
+                remote.pressButton((i & 1) == 0 ? "lightOn" : "tvOn");
+                remote.undo();
+            }
+        });
+        remote.pressButton("lightOn");
+        measure("RemoteControl.undo+redo", 1_000_000, ops -> {
+            for (int i = 0; i < ops; i++) {
+                remote.undo();
+                remote.redo();
+            }
+        });
+
+        ExecutorService sceneThreads = Executors.newFixedThreadPool(32);
+        for (boolean parallel : new boolean[] { false, true }) {
+            List<ICommand> scene = new ArrayList<>();
+            for (int i = 0; i < 100; i++) {
+                scene.add(new ICommand() {
+                    public void execute() { LockSupport.parkNanos(200_000); }
+                    public void undo() { LockSupport.parkNanos(200_000); }
+                });
+            }
+            MacroCommand macro = new MacroCommand(scene, parallel ? sceneThreads : null);
+            measure("MacroCommand.execute:scene=100x200us:" + (parallel ? "parallel" : "sequential"), 10, ops -> {
+                for (int i = 0; i < ops; i++) macro.execute();
+            });
+        }
+        sceneThreads.shutdown();
+
+        Path journalFile = Files.createTempFile("remote", ".journal");
+        try {
+            int entries = 2_000_000;
+            try (CommandJournal journal = new CommandJournal(journalFile)) {
+                RemoteControl journaled = new RemoteControl(1024, journal, 0);
+                journaled.setCommand("lightOn", new LightOnCommand(light));
+                journaled.setCommand("tvOn", new TVOnCommand(tv));
+                measure("RemoteControl.pressButton+undo:journaled", 1_000_000, ops -> {
+                    for (int i = 0; i < ops; i++) {
+                        journaled.pressButton((i & 1) == 0 ? "lightOn" : "tvOn");
+                        journaled.undo();
+                    }
+                });
+            }
+            Files.delete(journalFile);
+            try (CommandJournal journal = new CommandJournal(journalFile)) {
+                for (int i = 0; i < entries; i++) {
+                    if (i % 4 == 3) journal.undo();
+                    else journal.execute((i & 1) == 0 ? "lightOn" : "tvOn");
+                }
+            }
+            measure("RemoteControl.recover:entries=" + entries, entries, ops -> {
+                try (CommandJournal journal = new CommandJournal(journalFile)) {
+                    RemoteControl recovered = new RemoteControl(1024, journal, 0);
+                    recovered.setCommand("lightOn", new LightOnCommand(light));
+                    recovered.setCommand("tvOn", new TVOnCommand(tv));
+                    recovered.recover(false);
+                }
+            });
+        } finally {
+            Files.deleteIfExists(journalFile);
+        }
+
+        try (CommandBatcher batcher = new CommandBatcher(remote, 256, 10)) {
+            remote.setCommand("lightOff", new LightOffCommand(light));
+            measure("CommandBatcher.press:on-off-on bursts", 999_999, ops -> {
+                for (int i = 0; i < ops; i++) batcher.press(i % 3 == 1 ? "lightOff" : "lightOn");
+                batcher.flush();
+            });
+            if (batcher.submitted() > 0) report.printf("%-56s submitted %d, coalesced %d, dispatched %d in %d batches%n", "CommandBatcher totals",
+                    batcher.submitted(), batcher.coalesced(), batcher.dispatched(), batcher.batches());
+        }
+
+        for (int size : new int[] { 100, 100_000 }) {
+            List<ICommand> commands = new ArrayList<>();
+            for (int i = 0; i < size; i++) commands.add(i % 2 == 0 ? new LightOnCommand(light) : new TVOffCommand(tv));
+            MacroCommand macro = new MacroCommand(commands);
+            measure("MacroCommand.execute:commands=" + size, Math.max(10, 1_000_000 / size), ops -> {
+                for (int i = 0; i < ops; i++) macro.execute();
+            });
+        }
+
+        for (int members : new int[] { 10, 1_000, 50_000 }) {
+            ChannelMediator mediator = new ChannelMediator();
+            long[] received = new long[1];
+            User sender = new ChatUser(mediator, "sender");
+            mediator.addUser(sender, "bench");
+            for (int i = 0; i < members; i++) {
+                mediator.addUser(new User(mediator, "member" + i) {
+                    public void send(String message, String channelName) { mediator.sendMessage(message, this, channelName); }
+                    public void receive(String message, User from, String channelName) { received[0]++; }
+                }, "bench");
+            }
+            measure("ChannelMediator.sendMessage:members=" + members, Math.max(10, 1_000_000 / members), ops -> {
+                for (int i = 0; i < ops; i++) mediator.sendMessage("hello", sender, "bench");
+            });
+            blackhole = received[0];
+        }
+
+        for (boolean envelopes : new boolean[] { false, true }) {
+            ChannelMediator mediator = new ChannelMediator();
+            User sender = new ChatUser(mediator, "sender");
+            mediator.addUser(sender, "bench");
+            for (int i = 0; i < 50_000; i++) {
+                mediator.addUser(envelopes ? new ChatUser(mediator, "member" + i) : new ChatUser(mediator, "member" + i) {
+                    public void receive(MessageEnvelope envelope) {
+                        receive(envelope.message(), envelope.sender(), envelope.channelName());
+                    }
+                }, "bench");
+            }
+            measure("ChannelMediator.broadcast:members=50000:" + (envelopes ? "envelope" : "strings"), 20,
+                    ops -> { for (int i = 0; i < ops; i++) mediator.sendMessage("hello everyone", sender, "bench"); });
+        }
+
+        for (boolean async : new boolean[] { false, true }) {
+            DeliveryPipeline pipeline = async ? new DeliveryPipeline(2, 1024, 1024, OverflowPolicy.DROP) : null;
+            ChannelMediator mediator = new ChannelMediator(pipeline);
+            User sender = new ChatUser(mediator, "sender");
+            mediator.addUser(sender, "bench");
+            for (int i = 0; i < 10_000; i++) {
+                mediator.addUser(new User(mediator, "member" + i) {
+                    public void send(String message, String channelName) { mediator.sendMessage(message, this, channelName); }
+                    public void receive(String message, User from, String channelName) { blackhole = message.length(); }
+                }, "bench");
+            }
+            latency("ChannelMediator.sendMessage:members=10000:" + (async ? "async" : "sync"), 2_000, ops -> {
+                mediator.sendMessage("hello", sender, "bench");
+            });
+            if (pipeline != null) pipeline.close();
+        }
+
+        class TimedReport extends ReportGenerator {
+            void collectData() { spin(20_000); }
+            void formatData() { spin(40_000); }
+            void createDocument() { spin(20_000); }
+            void saveReport() { LockSupport.parkNanos(200_000); }
+        }
+        measure("ReportGenerator.generateReport:sequential", 2_000, ops -> {
+            for (int i = 0; i < ops; i++) new TimedReport().generateReport();
+        });
+        try (ReportPipeline pipeline = new ReportPipeline(64, 1, 1, 1, 8, 1)) {
+            measure("ReportPipeline:parallelism 1/1/1/8/1", 2_000, ops -> {
+                CompletableFuture<?>[] done = new CompletableFuture<?>[ops];
+                for (int i = 0; i < ops; i++) done[i] = pipeline.submit(new TimedReport());
+                CompletableFuture.allOf(done).join();
+            });
+            if (selected("ReportPipeline")) {
+                for (ReportStage stage : ReportStage.values()) {
+                    report.printf("  %-54s %14.1f reports/s %6.1f%% busy%n", stage, pipeline.throughput(stage),
+                            100 * pipeline.utilization(stage));
+                }
+            }
+        }
+
+        Path streamed = Files.createTempFile("report", ".out");
+        for (ReportGenerator format : new ReportGenerator[] { new PdfReport(), new ExcelReport(), new HtmlReport() }) {
+            measure("ReportGenerator.streamReport:" + format.getClass().getSimpleName() + " rows", 5_000_000,
+                    rows -> format.streamReport(streamed, RowSource.sample(rows), 8192));
+        }
+        Files.delete(streamed);
+
+        Path log = Files.createTempFile("output-sink", ".log");
+        PrintStream muted = System.out;
+        try (PrintStream file = new PrintStream(new BufferedOutputStream(new FileOutputStream(log.toFile()), 128), true)) {
+            System.setOut(file);
+            measure("Output:System.out.println(concat)", 200_000, ops -> {
+                for (int i = 0; i < ops; i++) System.out.println("member" + " receives from " + "sender" + " in bench: " + i);
+            });
+            OutputSink previous = Output.install(new PrintStreamSink());
+            try {
+                measure("Output:PrintStreamSink.println", 200_000, ops -> {
+                    for (int i = 0; i < ops; i++) Output.println("member", " receives from ", "sender", " in bench: ", i);
+                });
+            } finally {
+                Output.install(previous);
+            }
+        } finally {
+            System.setOut(muted);
+        }
+        try (AsyncFileSink sink = AsyncFileSink.open(log, 1 << 14)) {
+            OutputSink previous = Output.install(sink);
+            try {
+                measure("Output:AsyncFileSink.println+flush", 200_000, ops -> {
+                    for (int i = 0; i < ops; i++) Output.println("member", " receives from ", "sender", " in bench: ", i);
+                    Output.flush();
+                });
+            } finally {
+                Output.install(previous);
+            }
+        }
+        Files.delete(log);
+    }
+}
+
+// Compile from this directory so javac finds the shared harness, metrics and output sources
+// on the source path; the single-file source launcher cannot, so `java Main.java` does not work:
+//   javac -encoding UTF-8 -sourcepath . -d out/command Main.java
+//   java -cp out/command Main [mode]
+public class Main {
+    static final String USAGE = "usage: java -cp out/command Main [bench [filter] | stress | server [port]"
+            + " | loadgen [connections [channels [seconds]]]]";
+
+    public static void main(String[] args) throws Exception {
+        if (Metrics.ENABLED) Metrics.schedule(new JmxMetricsExporter("patterns.command"), 1_000);
+        if (args.length > 0 && args[0].equals("bench")) {
+            Benchmarks.main(args);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("stress")) {
+            PrintStream out = System.out;
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+            try {
+                ChannelMediatorStress.run(null);
+                ChannelMediatorStress.run(new DeliveryPipeline(2, 256, 256, OverflowPolicy.BLOCK));
+                RemoteControlStress.run();
+                CommandBatcherStress.run();
+            } finally {
+                System.setOut(out);
+            }
+            Output.println("ChannelMediator stress (sync and async): no lost or duplicate deliveries");
+            Output.println("RemoteControl stress: per-device order and undo/redo history consistent");
+            Output.println("CommandBatcher stress: batched end state matches unbatched from random start states");
+            return;
+        }
+        if (args.length > 0 && args[0].equals("server")) {
+            int port = args.length > 1 ? Integer.parseInt(args[1]) : 7070;
+            ChatServer server = new ChatServer(new ChannelMediator(new DeliveryPipeline(2, 1024, 4096, OverflowPolicy.DROP)), port);
+            Output.println("Chat server listening on port ", server.port());
+            server.run();
+            return;
+        }
+        if (args.length > 0 && args[0].equals("loadgen")) {
+            int connections = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+            int channels = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+            int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+            ChatLoadGenerator.run(connections, channels, seconds);
+            return;
+        }
+        if (args.length > 0) {
+            System.err.println(USAGE);
+            System.exit(2);
+        }
+        AsyncFileSink console = AsyncFileSink.stdout(1 << 14);
+        Output.install(console);
+        try {
+            // -------- COMMAND ----------
+            Output.println("\n=== COMMAND PATTERN ===");
+            Light light = new Light();
+            TV tv = new TV();
+            AirConditioner ac = new AirConditioner();
+
+            RemoteControl remote = new RemoteControl();
+            remote.setCommand("lightOn", new LightOnCommand(light));
+            remote.setCommand("lightOff", new LightOffCommand(light));
+            remote.setCommand("tvOn", new TVOnCommand(tv));
+            remote.setCommand("tvOff", new TVOffCommand(tv));
+            remote.setCommand("acOn", new ACOnCommand(ac));
+            remote.setCommand("acOff", new ACOffCommand(ac));
+
+            remote.pressButton("lightOn");
+            remote.pressButton("tvOn");
+            remote.undo();
+            remote.redo();
+
+            List<ICommand> party = Arrays.asList(
+                    new LightOnCommand(light),
+                    new TVOnCommand(tv),
+                    new ACOnCommand(ac)
+            );
+            remote.setCommand("partyMode", new MacroCommand(party));
+            remote.pressButton("partyMode");
+            remote.undo();
+
+            try (CommandBatcher batcher = new CommandBatcher(remote, 16, 5)) {
+                batcher.press("lightOn");
+                batcher.press("lightOff");
+                batcher.press("lightOn");
+                batcher.press("tvOff");
+                batcher.flush();
+                Output.println("Batched ", batcher.submitted(), " presses, coalesced ", batcher.coalesced(),
+                        ", dispatched ", batcher.dispatched());
+            }
+
+            Output.println("\n=== TEMPLATE METHOD PATTERN ===");
+            ReportGenerator pdf = new PdfReport();
+            ReportGenerator excel = new ExcelReport();
+            ReportGenerator html = new HtmlReport();
+            pdf.generateReport();
+            excel.generateReport();
+            html.generateReport();
+
+            try (ReportPipeline pipeline = new ReportPipeline(16, 1, 1, 1, 1, 1)) {
+                CompletableFuture.allOf(pipeline.submit(pdf), pipeline.submit(excel), pipeline.submit(html)).join();
+                Output.println("Pipeline finished ", pipeline.completed(ReportStage.SEND), " reports");
+            }
+
+            Path streamed = Files.createTempFile("report", ".html");
+            long rows = html.streamReport(streamed, RowSource.sample(100_000), 4096);
+            Output.println("Streamed ", rows, " HTML rows (", Files.size(streamed), " bytes)");
+            Files.delete(streamed);
+
+
+            Output.println("\n=== MEDIATOR PATTERN ===");
+            ChannelMediator chat = new ChannelMediator();
+            User alice = new ChatUser(chat, "Alice");
+            User bob = new ChatUser(chat, "Bob");
+            User charlie = new ChatUser(chat, "Charlie");
+
+            chat.addUser(alice, "general");
+            chat.addUser(bob, "general");
+            chat.addUser(charlie, "music");
+
+            alice.send("Hello everyone!", "general");
+            bob.send("Hi Alice!", "general");
+            charlie.send("Anyone here loves music?", "music");
+
+            chat.removeUser(bob, "general");
+            alice.send("Bye Bob!", "general");
+
+            if (Metrics.ENABLED) {
+                Output.println("\n=== METRICS ===");
+                InMemoryMetricsExporter metrics = new InMemoryMetricsExporter();
+                Metrics.export(metrics);
+                metrics.latest().forEach((name, value) -> Output.println(name, " = ", value));
+            }
+        } finally {
+            Output.install(new PrintStreamSink());
+            console.close();
+        }
     }
 }
@@ -1,56 +1,225 @@
+import java.lang.invoke.VarHandle;
+import java.lang.management.ManagementFactory;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.IntStream;
+
+enum ServiceClass {
+    ECONOMY, BUSINESS;
+
+    static ServiceClass of(String name) {
+        return "business".equalsIgnoreCase(name) ? BUSINESS : ECONOMY;
+    }
+}
+
+final class FareTable {
+    private final double[] perKm = new double[8];
+    private final double[] fixed = new double[8];
+
+    FareTable(double ratePerKm, double businessMultiplier, double luggageFee, double discountMultiplier) {
+        for (ServiceClass serviceClass : ServiceClass.values()) {
+            for (int options = 0; options < 4; options++) {
+                boolean hasDiscount = (options & 1) != 0, hasLuggage = (options & 2) != 0;
+                double discount = hasDiscount ? discountMultiplier : 1;
+                int i = index(serviceClass, hasDiscount, hasLuggage);
+                perKm[i] = ratePerKm * (serviceClass == ServiceClass.BUSINESS ? businessMultiplier : 1) * discount;
+                fixed[i] = (hasLuggage ? luggageFee : 0) * discount;
+            }
+        }
+    }
+
+    static int index(ServiceClass serviceClass, boolean hasDiscount, boolean hasLuggage) {
+        return serviceClass.ordinal() << 2 | (hasLuggage ? 2 : 0) | (hasDiscount ? 1 : 0);
+    }
+
+    double quote(double distance, ServiceClass serviceClass, int passengers, boolean hasDiscount, boolean hasLuggage) {
+        int i = index(serviceClass, hasDiscount, hasLuggage);
+        return (distance * perKm[i] + fixed[i]) * passengers;
+    }
+}
 
 interface ICostCalculationStrategy {
-    double calculateCost(double distance, String serviceClass, int passengers, boolean hasDiscount, boolean hasLuggage);
+    double calculateCost(double distance, ServiceClass serviceClass, int passengers, boolean hasDiscount, boolean hasLuggage);
+
+    default double calculateCost(double distance, String serviceClass, int passengers, boolean hasDiscount, boolean hasLuggage) {
+        return calculateCost(distance, ServiceClass.of(serviceClass), passengers, hasDiscount, hasLuggage);
+    }
 }
 
 class PlaneCostStrategy implements ICostCalculationStrategy {
-    public double calculateCost(double distance, String serviceClass, int passengers, boolean hasDiscount, boolean hasLuggage) {
-        double base = distance * 0.5;
-        if (serviceClass.equalsIgnoreCase("business")) base *= 1.8;
-        if (hasLuggage) base += 50;
-        if (hasDiscount) base *= 0.9;
-        return base * passengers;
+    private static final FareTable FARES = new FareTable(0.5, 1.8, 50, 0.9);
+
+    public double calculateCost(double distance, ServiceClass serviceClass, int passengers, boolean hasDiscount, boolean hasLuggage) {
+        return FARES.quote(distance, serviceClass, passengers, hasDiscount, hasLuggage);
     }
 }
 
 class TrainCostStrategy implements ICostCalculationStrategy {
-    public double calculateCost(double distance, String serviceClass, int passengers, boolean hasDiscount, boolean hasLuggage) {
-        double base = distance * 0.2;
-        if (serviceClass.equalsIgnoreCase("business")) base *= 1.3;
-        if (hasLuggage) base += 10;
-        if (hasDiscount) base *= 0.85;
-        return base * passengers;
+    private static final FareTable FARES = new FareTable(0.2, 1.3, 10, 0.85);
+
+    public double calculateCost(double distance, ServiceClass serviceClass, int passengers, boolean hasDiscount, boolean hasLuggage) {
+        return FARES.quote(distance, serviceClass, passengers, hasDiscount, hasLuggage);
     }
 }
 
 class BusCostStrategy implements ICostCalculationStrategy {
-    public double calculateCost(double distance, String serviceClass, int passengers, boolean hasDiscount, boolean hasLuggage) {
-        double base = distance * 0.1;
-        if (serviceClass.equalsIgnoreCase("business")) base *= 1.2;
-        if (hasLuggage) base += 5;
-        if (hasDiscount) base *= 0.8;
-        return base * passengers;
+    private static final FareTable FARES = new FareTable(0.1, 1.2, 5, 0.8);
+
+    public double calculateCost(double distance, ServiceClass serviceClass, int passengers, boolean hasDiscount, boolean hasLuggage) {
+        return FARES.quote(distance, serviceClass, passengers, hasDiscount, hasLuggage);
     }
 }
 
 class TravelBookingContext {
     private ICostCalculationStrategy strategy;
+    private QuoteCache quoteCache;
+    private double distanceStep;
 
     public void setStrategy(ICostCalculationStrategy strategy) {
         this.strategy = strategy;
     }
 
+    // A step of 0 caches exact distances; otherwise only distances on the step grid are cached.
+    public void setQuoteCache(QuoteCache cache, double distanceStep) {
+        if (distanceStep < 0) throw new IllegalArgumentException("Quantization step must be non-negative.");
+        this.quoteCache = cache;
+        this.distanceStep = distanceStep;
+    }
+
     public double calculate(double distance, String serviceClass, int passengers, boolean hasDiscount, boolean hasLuggage) {
+        if (quoteCache != null) return calculate(distance, ServiceClass.of(serviceClass), passengers, hasDiscount, hasLuggage);
         if (strategy == null) throw new IllegalStateException("Strategy not selected!");
         return strategy.calculateCost(distance, serviceClass, passengers, hasDiscount, hasLuggage);
     }
+
+    public double calculate(double distance, ServiceClass serviceClass, int passengers, boolean hasDiscount, boolean hasLuggage) {
+        ICostCalculationStrategy current = strategy;
+        if (current == null) throw new IllegalStateException("Strategy not selected!");
+        QuoteCache cache = quoteCache;
+        long distanceKey = cache == null ? QuoteCache.UNCACHEABLE : QuoteCache.key(distance, distanceStep);
+        if (distanceKey == QuoteCache.UNCACHEABLE) return current.calculateCost(distance, serviceClass, passengers, hasDiscount, hasLuggage);
+        long options = (long) passengers << 3 | FareTable.index(serviceClass, hasDiscount, hasLuggage);
+        long generation = cache.generation(current);
+        double cost = cache.get(current, generation, distanceKey, options);
+        if (Double.isNaN(cost)) {
+            cost = current.calculateCost(QuoteCache.value(distanceKey), serviceClass, passengers, hasDiscount, hasLuggage);
+            cache.put(current, generation, distanceKey, options, cost);
+        }
+        return cost;
+    }
+}
+
+class FareMatrix {
+    final int routes;
+    final int combinations;
+    final double[] fares;
+    final int[] ranking;
+
+    FareMatrix(int routes, int combinations) {
+        this.routes = routes;
+        this.combinations = combinations;
+        this.fares = new double[routes * combinations];
+        this.ranking = new int[routes * combinations];
+    }
+
+    public double fare(int route, int combination) {
+        return fares[route * combinations + combination];
+    }
+
+    public int rankedCombination(int route, int rank) {
+        return ranking[route * combinations + rank];
+    }
+}
+
+class BulkFareEngine {
+    private static final ServiceClass[] SERVICE_CLASSES = ServiceClass.values();
+
+    private final ICostCalculationStrategy[] modes;
+    private final int maxPassengers;
+    private final int combinations;
+
+    public BulkFareEngine(int maxPassengers, ICostCalculationStrategy... modes) {
+        if (maxPassengers < 1 || modes.length == 0) {
+            throw new IllegalArgumentException("Need at least one passenger and one travel mode.");
+        }
+        this.modes = modes.clone();
+        this.maxPassengers = maxPassengers;
+        this.combinations = modes.length * SERVICE_CLASSES.length * maxPassengers * 4;
+    }
+
+    public int combinations() {
+        return combinations;
+    }
+
+    public String describe(int combination) {
+        int options = combination & 3;
+        int rest = combination >> 2;
+        int passengers = rest % maxPassengers + 1;
+        rest /= maxPassengers;
+        String serviceClass = SERVICE_CLASSES[rest % SERVICE_CLASSES.length].name().toLowerCase();
+        ICostCalculationStrategy mode = modes[rest / SERVICE_CLASSES.length];
+        return mode.getClass().getSimpleName().replace("CostStrategy", "") + " " + serviceClass + " x" + passengers
+                + ((options & 1) != 0 ? " +discount" : "") + ((options & 2) != 0 ? " +luggage" : "");
+    }
+
+    public FareMatrix quote(double[] routeDistances) {
+        FareMatrix matrix = new FareMatrix(routeDistances.length, combinations);
+        IntStream.range(0, routeDistances.length).parallel().forEach(r -> quoteRoute(matrix, r, routeDistances[r]));
+        return matrix;
+    }
+
+    public FareMatrix quoteSequential(double[] routeDistances) {
+        FareMatrix matrix = new FareMatrix(routeDistances.length, combinations);
+        for (int r = 0; r < routeDistances.length; r++) quoteRoute(matrix, r, routeDistances[r]);
+        return matrix;
+    }
+
+    private void quoteRoute(FareMatrix matrix, int route, double distance) {
+        double[] fares = matrix.fares;
+        int offset = route * combinations;
+        int c = offset;
+        for (ICostCalculationStrategy mode : modes) {
+            for (ServiceClass serviceClass : SERVICE_CLASSES) {
+                for (int passengers = 1; passengers <= maxPassengers; passengers++) {
+                    for (int options = 0; options < 4; options++) {
+                        fares[c++] = mode.calculateCost(distance, serviceClass, passengers, (options & 1) != 0, (options & 2) != 0);
+                    }
+                }
+            }
+        }
+        rank(fares, matrix.ranking, offset, combinations);
+    }
+
+    private static void rank(double[] fares, int[] ranking, int offset, int length) {
+        for (int i = 0; i < length; i++) ranking[offset + i] = i;
+        for (int gap = length / 2; gap > 0; gap = gap == 2 ? 1 : gap * 5 / 11) {
+            for (int i = gap; i < length; i++) {
+                int combination = ranking[offset + i];
+                double fare = fares[offset + combination];
+                int j = i;
+                for (; j >= gap && fares[offset + ranking[offset + j - gap]] > fare; j -= gap) {
+                    ranking[offset + j] = ranking[offset + j - gap];
+                }
+                ranking[offset + j] = combination;
+            }
+        }
+    }
 }
 
 interface IObserver {
     void update(String stockName, double newPrice);
     String getName();
+
+    default void update(int symbolId, String stockName, double newPrice) {
+        update(stockName, newPrice);
+    }
 }
 
 interface ISubject {
@@ -59,46 +228,774 @@ interface ISubject {
     void notifyObservers(String stockName, double newPrice);
 }
 
-class StockExchange implements ISubject {
-    private Map<String, Double> stocks = new HashMap<>();
-    private Map<String, List<IObserver>> observers = new HashMap<>();
-    private ExecutorService executor = Executors.newCachedThreadPool();
+interface TickHandler {
+    void onTick(int symbolId, double price);
+
+    default void onTick(int symbolId, double price, long volume) {
+        onTick(symbolId, price);
+    }
+
+    default void onTick(int symbolId, double price, long volume, long timeNanos) {
+        onTick(symbolId, price, volume);
+    }
+}
+
+abstract class BoundedRing {
+    static final long FULL = -1, CLOSED = -2;
+    private static final long CLOSED_BIT = Long.MIN_VALUE;
+
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong();
+    private volatile long head;
+    private volatile boolean parked;
+    private volatile Thread consumer;
+    final int mask;
+
+    BoundedRing(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.mask = size - 1;
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) sequences.set(i, i);
+    }
+
+    long claim() {
+        long pos = tail.get();
+        while (true) {
+            if ((pos & CLOSED_BIT) != 0) return CLOSED;
+            long diff = sequences.get((int) pos & mask) - pos;
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) return pos;
+                pos = tail.get();
+            } else if (diff < 0) {
+                return FULL;
+            } else {
+                pos = tail.get();
+            }
+        }
+    }
+
+    long awaitClaim() {
+        long pos;
+        while ((pos = claim()) == FULL) LockSupport.parkNanos(1_000);
+        return pos;
+    }
+
+    void close() {
+        long pos;
+        while (((pos = tail.get()) & CLOSED_BIT) == 0 && !tail.compareAndSet(pos, pos | CLOSED_BIT)) Thread.onSpinWait();
+        if (parked) LockSupport.unpark(consumer);
+    }
+
+    boolean isClosed() {
+        return (tail.get() & CLOSED_BIT) != 0;
+    }
+
+    void publish(long pos) {
+        sequences.set((int) pos & mask, pos + 1);
+        if (parked) LockSupport.unpark(consumer);
+    }
+
+    int next() {
+        long pos = head;
+        return sequences.get((int) pos & mask) == pos + 1 ? (int) pos & mask : -1;
+    }
+
+    void release() {
+        long pos = head;
+        sequences.set((int) pos & mask, pos + mask + 1);
+        head = pos + 1;
+    }
+
+    boolean isEmpty() {
+        return head == (tail.get() & ~CLOSED_BIT);
+    }
+
+    int size() {
+        return (int) Math.max(0, (tail.get() & ~CLOSED_BIT) - head);
+    }
+
+    void awaitWork(long maxNanos) {
+        consumer = Thread.currentThread();
+        parked = true;
+        if (isEmpty()) LockSupport.parkNanos(this, maxNanos);
+        parked = false;
+    }
+}
+
+class TickRing extends BoundedRing {
+    private final int[] symbols;
+    private final double[] prices;
+    private final long[] volumes;
+    private final long[] times;
+
+    TickRing(int capacity) {
+        super(capacity);
+        this.symbols = new int[mask + 1];
+        this.prices = new double[mask + 1];
+        this.volumes = new long[mask + 1];
+        this.times = new long[mask + 1];
+    }
+
+    boolean put(int symbolId, double price) {
+        return put(symbolId, price, 0, 0);
+    }
+
+    boolean put(int symbolId, double price, long volume, long timeNanos) {
+        long pos = awaitClaim();
+        if (pos == CLOSED) return false;
+        int slot = (int) pos & mask;
+        symbols[slot] = symbolId;
+        prices[slot] = price;
+        volumes[slot] = volume;
+        times[slot] = timeNanos;
+        publish(pos);
+        return true;
+    }
+
+    int drain(TickHandler handler, int max) {
+        int drained = 0;
+        int slot;
+        while (drained < max && (slot = next()) >= 0) {
+            int symbolId = symbols[slot];
+            double price = prices[slot];
+            long volume = volumes[slot];
+            long timeNanos = times[slot];
+            release();
+            handler.onTick(symbolId, price, volume, timeNanos);
+            drained++;
+        }
+        return drained;
+    }
+}
+
+class MailboxRing extends BoundedRing {
+    private final ObserverMailbox[] mailboxes;
+
+    MailboxRing(int capacity) {
+        super(capacity);
+        this.mailboxes = new ObserverMailbox[mask + 1];
+    }
+
+    boolean offer(ObserverMailbox mailbox) {
+        long pos = claim();
+        if (pos < 0) return false;
+        mailboxes[(int) pos & mask] = mailbox;
+        publish(pos);
+        return true;
+    }
+
+    void put(ObserverMailbox mailbox) {
+        long pos = awaitClaim();
+        mailboxes[(int) pos & mask] = mailbox;
+        publish(pos);
+    }
+
+    ObserverMailbox poll() {
+        int slot = next();
+        if (slot < 0) return null;
+        ObserverMailbox mailbox = mailboxes[slot];
+        mailboxes[slot] = null;
+        release();
+        return mailbox;
+    }
+}
+
+class SymbolTable {
+    private final AtomicReferenceArray<String> keys;
+    private final int[] slotIds;
+    private final String[] names;
+    private final int mask;
+    private volatile int size;
+
+    SymbolTable(int maxSymbols) {
+        int slots = Integer.highestOneBit(Math.max(2, maxSymbols * 2 - 1)) << 1;
+        this.keys = new AtomicReferenceArray<>(slots);
+        this.slotIds = new int[slots];
+        this.names = new String[maxSymbols];
+        this.mask = slots - 1;
+    }
+
+    int find(String name) {
+        for (int i = spread(name.hashCode()) & mask; ; i = (i + 1) & mask) {
+            String key = keys.get(i);
+            if (key == null) return -1;
+            if (key.equals(name)) return slotIds[i];
+        }
+    }
+
+    synchronized int register(String name) {
+        int i = spread(name.hashCode()) & mask;
+        for (String key; (key = keys.get(i)) != null; i = (i + 1) & mask) {
+            if (key.equals(name)) return slotIds[i];
+        }
+        if (size == names.length) throw new IllegalStateException("Symbol table is full: " + size);
+        int id = size;
+        names[id] = name;
+        slotIds[i] = id;
+        keys.set(i, name);
+        size = id + 1;
+        return id;
+    }
+
+    String name(int symbolId) {
+        return names[symbolId];
+    }
+
+    int size() {
+        return size;
+    }
+
+    int capacity() {
+        return names.length;
+    }
+
+    private static int spread(int h) {
+        return h ^ (h >>> 16);
+    }
+}
+
+enum DeliveryMode { QUEUED, CONFLATED }
+
+class Subscription {
+    final int symbolId;
+    final String stockName;
+    final ObserverMailbox mailbox;
+    final DeliveryMode mode;
+    private final AtomicBoolean pending = new AtomicBoolean();
+    private volatile double latestPrice;
+
+    Subscription(int symbolId, String stockName, ObserverMailbox mailbox, DeliveryMode mode) {
+        this.symbolId = symbolId;
+        this.stockName = stockName;
+        this.mailbox = mailbox;
+        this.mode = mode;
+    }
+
+    void deliver(double price) {
+        if (mode == DeliveryMode.QUEUED) {
+            mailbox.post(symbolId, price);
+            return;
+        }
+        latestPrice = price;
+        if (pending.compareAndSet(false, true)) mailbox.schedule();
+    }
+
+    boolean hasPending() {
+        return pending.get();
+    }
+
+    boolean takePending() {
+        return pending.getAndSet(false);
+    }
+
+    double latestPrice() {
+        return latestPrice;
+    }
+}
+
+class ObserverMailbox implements TickHandler {
+    private static final int DRAIN_BATCH = 256;
+
+    private final IObserver observer;
+    private final SymbolTable symbols;
+    private final TickRing queue;
+    private final MailboxRing dispatcher;
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private volatile Subscription[] conflated = new Subscription[0];
+    int subscriptions;
+
+    ObserverMailbox(IObserver observer, SymbolTable symbols, int capacity, MailboxRing dispatcher) {
+        this.observer = observer;
+        this.symbols = symbols;
+        this.queue = new TickRing(capacity);
+        this.dispatcher = dispatcher;
+    }
+
+    void post(int symbolId, double price) {
+        queue.put(symbolId, price);
+        schedule();
+    }
+
+    synchronized void addConflated(Subscription subscription) {
+        Subscription[] copy = Arrays.copyOf(conflated, conflated.length + 1);
+        copy[conflated.length] = subscription;
+        conflated = copy;
+    }
+
+    synchronized void removeConflated(Subscription subscription) {
+        List<Subscription> copy = new ArrayList<>(Arrays.asList(conflated));
+        copy.remove(subscription);
+        conflated = copy.toArray(new Subscription[0]);
+    }
+
+    boolean isIdle() {
+        if (!queue.isEmpty() || scheduled.get()) return false;
+        for (Subscription subscription : conflated) {
+            if (subscription.hasPending()) return false;
+        }
+        return true;
+    }
+
+    void schedule() {
+        if (scheduled.compareAndSet(false, true)) dispatcher.put(this);
+    }
+
+    boolean drain() {
+        for (Subscription subscription : conflated) {
+            if (subscription.takePending()) onTick(subscription.symbolId, subscription.latestPrice());
+        }
+        queue.drain(this, DRAIN_BATCH);
+        scheduled.set(false);
+        return !isIdle() && scheduled.compareAndSet(false, true);
+    }
+
+    public void onTick(int symbolId, double price) {
+        try {
+            observer.update(symbolId, symbols.name(symbolId), price);
+        } catch (RuntimeException e) {
+            Output.println(observer.getName(), " failed on ", symbols.name(symbolId), ": ", e);
+        }
+    }
+}
+
+class StockExchange implements ISubject, TickHandler, AutoCloseable {
+    private static final LatencyHistogram NOTIFY_LATENCY = Metrics.histogram("exchange.notifyObservers");
+    private static final LongAdder UNKNOWN_SYMBOL = Metrics.counter("exchange.updateStock.unknownSymbol");
+    private static final LongAdder FAILED_TICKS = Metrics.counter("exchange.onTick.failed");
+
+    private final SymbolTable symbols;
+    private final AtomicLongArray prices;
+    private final AtomicReferenceArray<Subscription[]> observers;
+    private final Map<IObserver, ObserverMailbox> mailboxes = new ConcurrentHashMap<>();
+    private final TickRing[] shards;
+    private final MailboxRing[] dispatchers;
+    private final List<Thread> shardWorkers = new ArrayList<>();
+    private final List<Thread> dispatchWorkers = new ArrayList<>();
+    private final AtomicInteger nextDispatcher = new AtomicInteger();
+    private final int mailboxCapacity;
+    private final Metrics.Registration shardsGauge, dispatchersGauge;
+    private volatile TimeSeriesStore series;
+    private volatile boolean dispatching = true;
+
+    public StockExchange() {
+        this(Runtime.getRuntime().availableProcessors(), 1024, 4096);
+    }
+
+    public StockExchange(int shardCount, int queueCapacity, int maxSymbols) {
+        if (shardCount < 1 || queueCapacity < 1 || maxSymbols < 1) {
+            throw new IllegalArgumentException("Shard count, queue capacity and symbol limit must be positive.");
+        }
+        this.symbols = new SymbolTable(maxSymbols);
+        this.prices = new AtomicLongArray(maxSymbols);
+        this.observers = new AtomicReferenceArray<>(maxSymbols);
+        this.mailboxCapacity = queueCapacity;
+        this.shards = new TickRing[shardCount];
+        this.dispatchers = new MailboxRing[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            TickRing shard = shards[i] = new TickRing(queueCapacity);
+            MailboxRing dispatcher = dispatchers[i] = new MailboxRing(16384);
+            startWorker(shardWorkers, "exchange-shard-" + i, () -> drainShard(shard));
+            startWorker(dispatchWorkers, "exchange-dispatch-" + i, () -> drainDispatcher(dispatcher));
+        }
+        shardsGauge = Metrics.gauge("exchange.shards.queued", () -> queued(shards));
+        dispatchersGauge = Metrics.gauge("exchange.dispatchers.queued", () -> queued(dispatchers));
+    }
+
+    private static long queued(BoundedRing[] rings) {
+        long total = 0;
+        for (BoundedRing ring : rings) total += ring.size();
+        return total;
+    }
+
+    private static void startWorker(List<Thread> workers, String name, Runnable loop) {
+        Thread worker = new Thread(loop, name);
+        worker.setDaemon(true);
+        workers.add(worker);
+        worker.start();
+    }
+
+    public int register(String name) {
+        int symbolId = symbols.register(name);
+        observers.compareAndSet(symbolId, null, new Subscription[0]);
+        return symbolId;
+    }
 
     public void addStock(String name, double price) {
-        stocks.put(name, price);
-        observers.putIfAbsent(name, new ArrayList<>());
-        System.out.println("Stock added: " + name + " - " + price);
+        prices.set(register(name), Double.doubleToRawLongBits(price));
+        Output.println("Stock added: ", name, " - ", price);
+    }
+
+    public Double getPrice(String name) {
+        int symbolId = symbols.find(name);
+        return symbolId < 0 ? null : getPrice(symbolId);
+    }
+
+    public double getPrice(int symbolId) {
+        return Double.longBitsToDouble(prices.get(symbolId));
     }
 
     public void updateStock(String name, double newPrice) {
-        if (!stocks.containsKey(name)) {
-            System.out.println("Stock not found: " + name);
+        int symbolId = symbols.find(name);
+        if (symbolId < 0) {
+            if (Metrics.ENABLED) UNKNOWN_SYMBOL.increment();
+            Output.println("Stock not found: ", name);
             return;
         }
-        stocks.put(name, newPrice);
-        System.out.println("\nStock updated: " + name + " -> " + newPrice);
-        notifyObservers(name, newPrice);
+        Output.println("\nStock updated: ", name, " -> ", newPrice);
+        updateStock(symbolId, newPrice);
+    }
+
+    public void updateStock(int symbolId, double newPrice) {
+        updateStock(symbolId, newPrice, 0);
+    }
+
+    // The tick is stamped here, not when a shard gets to it, so time-series windows measure
+    // when prices changed rather than how far behind the shard was.
+    public void updateStock(int symbolId, double newPrice, long volume) {
+        if (symbolId < 0 || symbolId >= symbols.size()) throw new IndexOutOfBoundsException("Unknown symbol id: " + symbolId);
+        if (!shards[symbolId % shards.length].put(symbolId, newPrice, volume, System.nanoTime())) {
+            throw new IllegalStateException("StockExchange is closed.");
+        }
+    }
+
+    public void setTimeSeries(TimeSeriesStore series) {
+        if (series != null && series.maxSymbols() < symbols.capacity()) {
+            throw new IllegalArgumentException("Time series holds " + series.maxSymbols() + " symbols but the exchange allows "
+                    + symbols.capacity() + ".");
+        }
+        this.series = series;
+    }
+
+    private void drainShard(TickRing shard) {
+        while (!shard.isClosed() || !shard.isEmpty()) {
+            try {
+                if (shard.drain(this, 1024) == 0) shard.awaitWork(1_000_000);
+            } catch (RuntimeException e) {
+                if (Metrics.ENABLED) FAILED_TICKS.increment();
+                Output.println(Thread.currentThread().getName(), " dropped a tick: ", e);
+            }
+        }
+    }
+
+    private void drainDispatcher(MailboxRing dispatcher) {
+        while (dispatching || !dispatcher.isEmpty()) {
+            ObserverMailbox mailbox = dispatcher.poll();
+            if (mailbox == null) {
+                dispatcher.awaitWork(1_000_000);
+                continue;
+            }
+            while (mailbox.drain()) {
+                if (dispatcher.offer(mailbox)) break;
+            }
+        }
+    }
+
+    public void onTick(int symbolId, double price) {
+        onTick(symbolId, price, 0);
+    }
+
+    public void onTick(int symbolId, double price, long volume) {
+        onTick(symbolId, price, volume, System.nanoTime());
+    }
+
+    public void onTick(int symbolId, double price, long volume, long timeNanos) {
+        prices.set(symbolId, Double.doubleToRawLongBits(price));
+        TimeSeriesStore store = series;
+        if (store != null) store.append(symbolId, timeNanos, price, volume);
+        dispatch(symbolId, price);
     }
 
     public void addObserver(String stockName, IObserver observer) {
-        observers.putIfAbsent(stockName, new ArrayList<>());
-        observers.get(stockName).add(observer);
-        System.out.println(observer.getName() + " subscribed to " + stockName);
+        addObserver(stockName, observer, DeliveryMode.QUEUED);
+    }
+
+    public void addObserver(String stockName, IObserver observer, DeliveryMode mode) {
+        int symbolId = register(stockName);
+        ObserverMailbox mailbox = mailboxes.compute(observer, (o, m) -> {
+            if (m == null) {
+                MailboxRing dispatcher = dispatchers[nextDispatcher.getAndIncrement() % dispatchers.length];
+                m = new ObserverMailbox(o, symbols, mailboxCapacity, dispatcher);
+            }
+            m.subscriptions++;
+            return m;
+        });
+        Subscription subscription = new Subscription(symbolId, stockName, mailbox, mode);
+        if (mode == DeliveryMode.CONFLATED) mailbox.addConflated(subscription);
+        observers.updateAndGet(symbolId, current -> {
+            Subscription[] copy = Arrays.copyOf(current, current.length + 1);
+            copy[current.length] = subscription;
+            return copy;
+        });
+        Output.println(observer.getName(), " subscribed to ", stockName,
+                mode == DeliveryMode.CONFLATED ? " (conflated)" : "");
     }
 
     public void removeObserver(String stockName, IObserver observer) {
-        if (observers.containsKey(stockName)) {
-            observers.get(stockName).remove(observer);
-            System.out.println(observer.getName() + " unsubscribed from " + stockName);
-        }
+        ObserverMailbox mailbox = mailboxes.get(observer);
+        int symbolId = symbols.find(stockName);
+        if (mailbox == null || symbolId < 0) return;
+        Subscription[] removed = new Subscription[1];
+        observers.updateAndGet(symbolId, current -> {
+            for (int i = 0; i < current.length; i++) {
+                if (current[i].mailbox != mailbox) continue;
+                Subscription[] copy = new Subscription[current.length - 1];
+                System.arraycopy(current, 0, copy, 0, i);
+                System.arraycopy(current, i + 1, copy, i, copy.length - i);
+                removed[0] = current[i];
+                return copy;
+            }
+            return current;
+        });
+        if (removed[0] == null) return;
+        if (removed[0].mode == DeliveryMode.CONFLATED) mailbox.removeConflated(removed[0]);
+        mailboxes.computeIfPresent(observer, (o, m) -> --m.subscriptions == 0 ? null : m);
+        Output.println(observer.getName(), " unsubscribed from ", stockName);
     }
 
     public void notifyObservers(String stockName, double newPrice) {
-        List<IObserver> list = observers.get(stockName);
-        if (list == null) return;
-        for (IObserver obs : list) {
-            executor.submit(() -> obs.update(stockName, newPrice));
+        if (!dispatching) throw new IllegalStateException("StockExchange is closed.");
+        int symbolId = symbols.find(stockName);
+        if (symbolId >= 0) dispatch(symbolId, newPrice);
+    }
+
+    private void dispatch(int symbolId, double price) {
+        Subscription[] subscriptions = observers.get(symbolId);
+        if (subscriptions == null) return;
+        long start = Metrics.ENABLED ? System.nanoTime() : 0;
+        for (Subscription subscription : subscriptions) subscription.deliver(price);
+        if (Metrics.ENABLED) NOTIFY_LATENCY.recordSince(start);
+    }
+
+    boolean isIdle() {
+        for (TickRing shard : shards) {
+            if (!shard.isEmpty()) return false;
+        }
+        for (ObserverMailbox mailbox : mailboxes.values()) {
+            if (!mailbox.isIdle()) return false;
+        }
+        return true;
+    }
+
+    public void close() {
+        for (TickRing shard : shards) shard.close();
+        shardsGauge.close();
+        dispatchersGauge.close();
+        try {
+            for (Thread worker : shardWorkers) worker.join();
+            dispatching = false;
+            for (Thread worker : dispatchWorkers) {
+                LockSupport.unpark(worker);
+                worker.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
+
+final class SeriesStats {
+    long count;
+    long firstTime;
+    long lastTime;
+    double last;
+    double movingAverage;
+    double vwap;
+    double volatility;
+}
+
+class TimeSeriesStore {
+    private final int maxSymbols;
+    private final int capacity;
+    private final int mask;
+    private final long windowNanos;
+    private final long[] times;
+    private final double[] prices;
+    private final long[] volumes;
+    private final double[] returns;
+    private final long[] head;
+    private final long[] tail;
+    private final long[] evictions;
+    private final double[] sumPrice;
+    private final double[] sumPriceVolume;
+    private final double[] sumVolume;
+    private final double[] sumReturn;
+    private final double[] sumReturnSquared;
+    private final int[] returnCount;
+    private final AtomicLongArray versions;
+
+    public TimeSeriesStore(int maxSymbols, int capacity, long windowNanos) {
+        if (maxSymbols < 1 || capacity < 2 || windowNanos < 1) {
+            throw new IllegalArgumentException("Symbol limit, capacity and window must be positive.");
+        }
+        this.maxSymbols = maxSymbols;
+        this.capacity = Integer.highestOneBit(capacity - 1) << 1;
+        this.mask = this.capacity - 1;
+        this.windowNanos = windowNanos;
+        int slots = maxSymbols * this.capacity;
+        this.times = new long[slots];
+        this.prices = new double[slots];
+        this.volumes = new long[slots];
+        this.returns = new double[slots];
+        this.head = new long[maxSymbols];
+        this.tail = new long[maxSymbols];
+        this.evictions = new long[maxSymbols];
+        this.sumPrice = new double[maxSymbols];
+        this.sumPriceVolume = new double[maxSymbols];
+        this.sumVolume = new double[maxSymbols];
+        this.sumReturn = new double[maxSymbols];
+        this.sumReturnSquared = new double[maxSymbols];
+        this.returnCount = new int[maxSymbols];
+        this.versions = new AtomicLongArray(maxSymbols);
+    }
+
+    public int maxSymbols() {
+        return maxSymbols;
+    }
+
+    public void append(int symbolId, long timeNanos, double price, long volume) {
+        int base = symbolId * capacity;
+        long version = versions.get(symbolId);
+        versions.lazySet(symbolId, version + 1);
+        VarHandle.storeStoreFence();
+        while (head[symbolId] < tail[symbolId]
+                && (tail[symbolId] - head[symbolId] == capacity || timeNanos - times[base + (int) (head[symbolId] & mask)] > windowNanos)) {
+            evict(symbolId, base);
         }
+        double change = Double.NaN;
+        if (tail[symbolId] > 0) {
+            double previous = prices[base + (int) ((tail[symbolId] - 1) & mask)];
+            if (previous > 0) change = price / previous - 1;
+        }
+        int slot = base + (int) (tail[symbolId]++ & mask);
+        times[slot] = timeNanos;
+        prices[slot] = price;
+        volumes[slot] = volume;
+        returns[slot] = change;
+        sumPrice[symbolId] += price;
+        sumPriceVolume[symbolId] += price * volume;
+        sumVolume[symbolId] += volume;
+        if (!Double.isNaN(change)) {
+            sumReturn[symbolId] += change;
+            sumReturnSquared[symbolId] += change * change;
+            returnCount[symbolId]++;
+        }
+        if (evictions[symbolId] >= capacity) rebuild(symbolId, base);
+        versions.set(symbolId, version + 2);
+    }
+
+    private void evict(int symbolId, int base) {
+        int slot = base + (int) (head[symbolId]++ & mask);
+        sumPrice[symbolId] -= prices[slot];
+        sumPriceVolume[symbolId] -= prices[slot] * volumes[slot];
+        sumVolume[symbolId] -= volumes[slot];
+        if (!Double.isNaN(returns[slot])) {
+            sumReturn[symbolId] -= returns[slot];
+            sumReturnSquared[symbolId] -= returns[slot] * returns[slot];
+            returnCount[symbolId]--;
+        }
+        evictions[symbolId]++;
+    }
+
+    private void rebuild(int symbolId, int base) {
+        double price = 0, priceVolume = 0, volume = 0, change = 0, changeSquared = 0;
+        int changes = 0;
+        for (long i = head[symbolId]; i < tail[symbolId]; i++) {
+            int slot = base + (int) (i & mask);
+            price += prices[slot];
+            priceVolume += prices[slot] * volumes[slot];
+            volume += volumes[slot];
+            if (Double.isNaN(returns[slot])) continue;
+            change += returns[slot];
+            changeSquared += returns[slot] * returns[slot];
+            changes++;
+        }
+        sumPrice[symbolId] = price;
+        sumPriceVolume[symbolId] = priceVolume;
+        sumVolume[symbolId] = volume;
+        sumReturn[symbolId] = change;
+        sumReturnSquared[symbolId] = changeSquared;
+        returnCount[symbolId] = changes;
+        evictions[symbolId] = 0;
+    }
+
+    // Only append() evicts, so a symbol that stopped ticking still holds its old window; the
+    // reader leaves out samples older than nowNanos - window without touching the store.
+    public boolean read(int symbolId, long nowNanos, SeriesStats into) {
+        int base = symbolId * capacity;
+        while (true) {
+            long version = versions.get(symbolId);
+            if ((version & 1) != 0) {
+                Thread.onSpinWait();
+                continue;
+            }
+            long first = head[symbolId], next = tail[symbolId];
+            double price = sumPrice[symbolId], priceVolume = sumPriceVolume[symbolId], volume = sumVolume[symbolId];
+            double change = sumReturn[symbolId], changeSquared = sumReturnSquared[symbolId];
+            int n = returnCount[symbolId];
+            for (; first < next && nowNanos - times[base + (int) (first & mask)] > windowNanos; first++) {
+                int slot = base + (int) (first & mask);
+                price -= prices[slot];
+                priceVolume -= prices[slot] * volumes[slot];
+                volume -= volumes[slot];
+                if (Double.isNaN(returns[slot])) continue;
+                change -= returns[slot];
+                changeSquared -= returns[slot] * returns[slot];
+                n--;
+            }
+            long count = next - first;
+            if (count > 0) {
+                into.count = count;
+                into.firstTime = times[base + (int) (first & mask)];
+                into.lastTime = times[base + (int) ((next - 1) & mask)];
+                into.last = prices[base + (int) ((next - 1) & mask)];
+                into.movingAverage = price / count;
+                into.vwap = volume > 0 ? priceVolume / volume : into.movingAverage;
+                double mean = n > 0 ? change / n : 0;
+                into.volatility = n > 1 ? Math.sqrt(Math.max(0, (changeSquared - n * mean * mean) / (n - 1))) : 0;
+            }
+            VarHandle.loadLoadFence();
+            if (versions.get(symbolId) != version) continue;
+            if (count == 0) into.count = 0;
+            return count > 0;
+        }
+    }
+}
+
+class TickPathAllocationCheck {
+    static void run() throws InterruptedException {
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        StockExchange exchange = new StockExchange(2, 4096, 64);
+        String[] names = new String[16];
+        int[] symbolIds = new int[names.length];
+        for (int i = 0; i < names.length; i++) symbolIds[i] = exchange.register(names[i] = "SYM" + i);
+        double[] sink = new double[1];
+        for (int i = 0; i < 8; i++) {
+            IObserver observer = new IObserver() {
+                public void update(String stockName, double newPrice) { sink[0] += newPrice; }
+                public void update(int symbolId, String stockName, double newPrice) { sink[0] += newPrice; }
+                public String getName() { return "probe"; }
+            };
+            DeliveryMode mode = i % 2 == 0 ? DeliveryMode.QUEUED : DeliveryMode.CONFLATED;
+            for (String name : names) exchange.addObserver(name, observer, mode);
+        }
+        long[] workers = Thread.getAllStackTraces().keySet().stream()
+                .filter(t -> t.getName().startsWith("exchange-"))
+                .mapToLong(Thread::getId).toArray();
+        int ticks = 2_000_000;
+        long allocated = 0;
+        for (int round = 0; round < 2; round++) {
+            allocated = -threads.getCurrentThreadAllocatedBytes();
+            for (long id : workers) allocated -= threads.getThreadAllocatedBytes(id);
+            for (int i = 0; i < ticks; i++) exchange.updateStock(symbolIds[i & 15], 100 + (i & 1023));
+            allocated += threads.getCurrentThreadAllocatedBytes();
+            while (!exchange.isIdle()) Thread.sleep(1);
+            for (long id : workers) allocated += threads.getThreadAllocatedBytes(id);
+        }
+        exchange.close();
+        System.out.printf("Tick path allocated %d bytes over %d ticks (%.4f B/tick)%n",
+                allocated, ticks, (double) allocated / ticks);
+        if (allocated > 0) throw new AssertionError("Steady-state tick path allocated " + allocated + " bytes");
     }
 }
 
@@ -108,10 +1005,12 @@ class Trader implements IObserver {
     public String getName() { return name; }
 
     public void update(String stockName, double newPrice) {
-        System.out.println(name + " received update: " + stockName + " new price = " + newPrice);
+        Output.println(name, " received update: ", stockName, " new price = ", newPrice);
     }
 }
 
+enum Decision { BUY, SELL, HOLD }
+
 class TradingRobot implements IObserver {
     private String name;
     private double buyThreshold, sellThreshold;
@@ -122,56 +1021,417 @@ class TradingRobot implements IObserver {
         this.sellThreshold = sellThreshold;
     }
 
+    public String getName() { return name; }
+    double buyThreshold() { return buyThreshold; }
+    double sellThreshold() { return sellThreshold; }
+
+    Decision decide(double price) {
+        if (price <= buyThreshold) return Decision.BUY;
+        if (price >= sellThreshold) return Decision.SELL;
+        return Decision.HOLD;
+    }
+
+    public void update(String stockName, double newPrice) {
+        Output.println(name, " robot analyzing ", stockName, " price = ", newPrice);
+        act(stockName, newPrice, decide(newPrice));
+    }
+
+    void act(String stockName, double price, Decision decision) {
+        Output.println(name, " decides to ", decision, " ", stockName);
+    }
+}
+
+class RobotRuleEngine implements IObserver {
+    private static final class SymbolRules {
+        final List<TradingRobot> robots = new ArrayList<>();
+        double[] buyLevels = new double[0];
+        TradingRobot[] buyRobots = new TradingRobot[0];
+        double[] sellLevels = new double[0];
+        TradingRobot[] sellRobots = new TradingRobot[0];
+        double lastPrice = Double.NaN;
+        boolean dirty;
+    }
+
+    private final String name;
+    private final Map<String, SymbolRules> rules = new ConcurrentHashMap<>();
+
+    public RobotRuleEngine(String name) {
+        this.name = name;
+    }
+
+    public String getName() { return name; }
+
+    public void addRobot(String stockName, TradingRobot robot) {
+        SymbolRules symbol = rules.computeIfAbsent(stockName, n -> new SymbolRules());
+        synchronized (symbol) {
+            symbol.robots.add(robot);
+            symbol.dirty = true;
+        }
+    }
+
+    public boolean removeRobot(String stockName, TradingRobot robot) {
+        SymbolRules symbol = rules.get(stockName);
+        if (symbol == null) return false;
+        synchronized (symbol) {
+            if (!symbol.robots.remove(robot)) return false;
+            symbol.dirty = true;
+            return true;
+        }
+    }
+
+    public void update(String stockName, double newPrice) {
+        evaluate(stockName, newPrice);
+    }
+
+    public int evaluate(String stockName, double price) {
+        SymbolRules symbol = rules.get(stockName);
+        if (symbol == null) return 0;
+        synchronized (symbol) {
+            if (symbol.dirty) compile(symbol);
+            double previous = symbol.lastPrice;
+            symbol.lastPrice = price;
+            int fired = 0;
+            if (Double.isNaN(previous) || price < previous) {
+                int from = lowerBound(symbol.buyLevels, price);
+                int to = Double.isNaN(previous) ? symbol.buyLevels.length : lowerBound(symbol.buyLevels, previous);
+                for (int i = from; i < to; i++) {
+                    symbol.buyRobots[i].act(stockName, price, Decision.BUY);
+                    fired++;
+                }
+            }
+            if (Double.isNaN(previous) || price > previous) {
+                int from = Double.isNaN(previous) ? 0 : upperBound(symbol.sellLevels, previous);
+                int to = upperBound(symbol.sellLevels, price);
+                for (int i = from; i < to; i++) {
+                    if (symbol.sellRobots[i].decide(price) != Decision.SELL) continue;
+                    symbol.sellRobots[i].act(stockName, price, Decision.SELL);
+                    fired++;
+                }
+            }
+            return fired;
+        }
+    }
+
+    private static void compile(SymbolRules symbol) {
+        TradingRobot[] byBuy = symbol.robots.toArray(new TradingRobot[0]);
+        TradingRobot[] bySell = byBuy.clone();
+        Arrays.sort(byBuy, Comparator.comparingDouble(TradingRobot::buyThreshold));
+        Arrays.sort(bySell, Comparator.comparingDouble(TradingRobot::sellThreshold));
+        symbol.buyRobots = byBuy;
+        symbol.sellRobots = bySell;
+        symbol.buyLevels = new double[byBuy.length];
+        symbol.sellLevels = new double[bySell.length];
+        for (int i = 0; i < byBuy.length; i++) {
+            symbol.buyLevels[i] = byBuy[i].buyThreshold();
+            symbol.sellLevels[i] = bySell[i].sellThreshold();
+        }
+        symbol.dirty = false;
+    }
+
+    private static int lowerBound(double[] levels, double key) {
+        int low = 0, high = levels.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (levels[mid] < key) low = mid + 1;
+            else high = mid;
+        }
+        return low;
+    }
+
+    private static int upperBound(double[] levels, double key) {
+        int low = 0, high = levels.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (levels[mid] <= key) low = mid + 1;
+            else high = mid;
+        }
+        return low;
+    }
+}
+
+final class PriceTick {
+    final int symbolId;
+    final String stockName;
+    final double price;
+
+    PriceTick(int symbolId, String stockName, double price) {
+        this.symbolId = symbolId;
+        this.stockName = stockName;
+        this.price = price;
+    }
+}
+
+class StockPublisher extends BoundedPublisher<PriceTick> implements IObserver {
+    private final String name;
+
+    public StockPublisher(String name, int bufferCapacity, OverflowPolicy policy) {
+        super(bufferCapacity, policy);
+        this.name = name;
+    }
+
+    public StockPublisher(String name, Executor executor, int bufferCapacity, OverflowPolicy policy, long blockTimeoutMillis) {
+        super(executor, bufferCapacity, policy, blockTimeoutMillis);
+        this.name = name;
+    }
+
     public String getName() { return name; }
 
     public void update(String stockName, double newPrice) {
-        System.out.println(name + " robot analyzing " + stockName + " price = " + newPrice);
-        if (newPrice <= buyThreshold) System.out.println(name + " decides to BUY " + stockName);
-        else if (newPrice >= sellThreshold) System.out.println(name + " decides to SELL " + stockName);
-        else System.out.println(name + " decides to HOLD " + stockName);
+        publish(new PriceTick(-1, stockName, newPrice));
+    }
+
+    public void update(int symbolId, String stockName, double newPrice) {
+        publish(new PriceTick(symbolId, stockName, newPrice));
     }
 }
 
-public class Main {
-    public static void main(String[] args) {
-        System.out.println("=== STRATEGY PATTERN ===");
+class ObserverSubscriber extends PrefetchSubscriber<PriceTick> {
+    public ObserverSubscriber(IObserver observer, int prefetch) {
+        super(tick -> {
+            if (tick.symbolId < 0) observer.update(tick.stockName, tick.price);
+            else observer.update(tick.symbolId, tick.stockName, tick.price);
+        }, prefetch);
+    }
+}
+
+class Benchmarks extends BenchmarkHarness {
+    static void main(String[] args) throws Exception {
+        execute(args, Benchmarks::run);
+    }
+
+    private static void run() throws Exception {
+        report.println("# metrics " + (Metrics.ENABLED ? "enabled" : "disabled") + " (-Dmetrics.enabled)");
+        ICostCalculationStrategy[] strategies = { new PlaneCostStrategy(), new TrainCostStrategy(), new BusCostStrategy() };
         TravelBookingContext context = new TravelBookingContext();
+        for (ICostCalculationStrategy strategy : strategies) {
+            measure("TravelBookingContext.calculate:" + strategy.getClass().getSimpleName(), 1_000_000, ops -> {
+                context.setStrategy(strategy);
+                double sum = 0;
+                for (int i = 0; i < ops; i++) {
+                    sum += context.calculate(100 + (i & 1023), (i & 1) == 0 ? "business" : "econom", 1 + (i & 3), (i & 4) != 0, (i & 8) != 0);
+                }
+                blackhole = sum;
+            });
+        }
+        ServiceClass[] classes = ServiceClass.values();
+        for (ICostCalculationStrategy strategy : strategies) {
+            measure("TravelBookingContext.calculate(enum):" + strategy.getClass().getSimpleName(), 1_000_000, ops -> {
+                context.setStrategy(strategy);
+                double sum = 0;
+                for (int i = 0; i < ops; i++) {
+                    sum += context.calculate(100 + (i & 1023), classes[i & 1], 1 + (i & 3), (i & 4) != 0, (i & 8) != 0);
+                }
+                blackhole = sum;
+            });
+        }
+        measure("TravelBookingContext.calculate:mixed", 1_000_000, ops -> {
+            double sum = 0;
+            for (int i = 0; i < ops; i++) {
+                context.setStrategy(strategies[i % strategies.length]);
+                sum += context.calculate(100 + (i & 1023), (i & 1) == 0 ? "business" : "econom", 1 + (i & 3), (i & 4) != 0, (i & 8) != 0);
+            }
+            blackhole = sum;
+        });
+        TravelBookingContext cached = new TravelBookingContext();
+        cached.setStrategy(strategies[0]);
+        LruQuoteCache quotes = new LruQuoteCache(1 << 16);
+        cached.setQuoteCache(quotes, 10);
+        measure("TravelBookingContext.calculate:cached", 1_000_000, ops -> {
+            double sum = 0;
+            for (int i = 0; i < ops; i++) {
+                sum += cached.calculate(100 + 10 * (i & 1023), classes[i & 1], 1 + (i & 3), (i & 4) != 0, (i & 8) != 0);
+            }
+            blackhole = sum;
+        });
+        if (selected("TravelBookingContext.calculate:cached")) {
+            report.printf("  %-54s hits %d, misses %d, evictions %d%n", "quote cache", quotes.hits(), quotes.misses(), quotes.evictions());
+        }
+
+        BulkFareEngine engine = new BulkFareEngine(4, strategies);
+        double[] routes = new double[10_000];
+        for (int i = 0; i < routes.length; i++) routes[i] = 50 + (i * 37) % 5000;
+        measure("BulkFareEngine.quoteSequential:routes=10000", routes.length * engine.combinations(),
+                ops -> blackhole = engine.quoteSequential(routes).fares[0]);
+        measure("BulkFareEngine.quote:routes=10000", routes.length * engine.combinations(),
+                ops -> blackhole = engine.quote(routes).fares[0]);
+
+        for (int observers : new int[] { 1, 100, 10_000 }) {
+            StockExchange exchange = new StockExchange(2, observers > 1000 ? 64 : 1024, 16);
+            int symbolId = exchange.register("AAPL");
+            for (int i = 0; i < observers; i++) {
+                exchange.addObserver("AAPL", new IObserver() {
+                    public void update(String stockName, double newPrice) { blackhole = newPrice; }
+                    public String getName() { return "bench"; }
+                });
+            }
+            measure("StockExchange.updateStock:observers=" + observers, Math.max(1_000, 1_000_000 / observers), ops -> {
+                for (int i = 0; i < ops; i++) exchange.updateStock(symbolId, 100 + (i & 1023));
+                while (!exchange.isIdle()) LockSupport.parkNanos(100_000);
+            });
+            exchange.close();
+        }
+
+        TimeSeriesStore store = new TimeSeriesStore(64, 4096, 1_000_000_000L);
+        long[] clock = new long[1];
+        measure("TimeSeriesStore.append:symbols=64,capacity=4096", 10_000_000, ops -> {
+            for (int i = 0; i < ops; i++) store.append(i & 63, clock[0] += 1_000, 100 + (i & 1023) * 0.01, 1 + (i & 7));
+        });
+        SeriesStats stats = new SeriesStats();
+        measure("TimeSeriesStore.read:symbols=64,capacity=4096", 10_000_000, ops -> {
+            for (int i = 0; i < ops; i++) store.read(i & 63, clock[0], stats);
+            blackhole = stats.vwap + stats.volatility;
+        });
+        try (StockExchange exchange = new StockExchange(1, 4096, 64)) {
+            int symbolId = exchange.register("BENCH");
+            exchange.setTimeSeries(new TimeSeriesStore(64, 4096, 1_000_000_000L));
+            measure("StockExchange.updateStock+timeSeries", 1_000_000, ops -> {
+                for (int i = 0; i < ops; i++) exchange.updateStock(symbolId, 100 + (i & 1023), 100);
+                while (!exchange.isIdle()) LockSupport.parkNanos(100_000);
+            });
+        }
+
+        double[] walk = new double[1 << 16];
+        walk[0] = 75;
+        Random random = new Random(42);
+        for (int i = 1; i < walk.length; i++) walk[i] = Math.max(40, Math.min(110, walk[i - 1] + random.nextGaussian() * 0.25));
+        for (int robots : new int[] { 100, 10_000 }) {
+            RobotRuleEngine rules = new RobotRuleEngine("bench");
+            TradingRobot[] all = new TradingRobot[robots];
+            long[] fired = new long[1];
+            for (int i = 0; i < robots; i++) {
+                double buy = 50 + (i % 100) * 0.5;
+                all[i] = new TradingRobot("robot" + i, buy, buy + 10 + i % 7) {
+                    void act(String stockName, double price, Decision decision) { fired[0]++; }
+                };
+                rules.addRobot("BENCH", all[i]);
+            }
+            measure("TradingRobot.decide:every robot per tick,robots=" + robots, Math.max(100, 10_000_000 / robots), ops -> {
+                int buys = 0;
+                for (int i = 0; i < ops; i++) {
+                    double price = walk[i & (walk.length - 1)];
+                    for (TradingRobot robot : all) {
+                        if (robot.decide(price) == Decision.BUY) buys++;
+                    }
+                }
+                blackhole = buys;
+            });
+            measure("RobotRuleEngine.evaluate:robots=" + robots, 1_000_000, ops -> {
+                for (int i = 0; i < ops; i++) rules.evaluate("BENCH", walk[i & (walk.length - 1)]);
+            });
+            blackhole = fired[0];
+        }
+    }
+}
+
+// Compile from this directory so javac finds the shared harness, metrics, output and flow
+// sources on the source path; the single-file source launcher cannot, so `java Main1.java`
+// does not work. Main is package-private so javac accepts it in a file not named Main.java:
+//   javac -encoding UTF-8 -sourcepath . -d out/observer Main1.java
+//   java -cp out/observer Main [mode]
+class Main {
+    static final String USAGE = "usage: java -cp out/observer Main [bench [filter] | alloc-check]";
+
+    public static void main(String[] args) throws Exception {
+        if (Metrics.ENABLED) Metrics.schedule(new JmxMetricsExporter("patterns.observer"), 1_000);
+        if (args.length > 0 && args[0].equals("alloc-check")) {
+            TickPathAllocationCheck.run();
+            return;
+        }
+        if (args.length > 0 && args[0].equals("bench")) {
+            Benchmarks.main(args);
+            return;
+        }
+        if (args.length > 0) {
+            System.err.println(USAGE);
+            System.exit(2);
+        }
+        AsyncFileSink console = AsyncFileSink.stdout(1 << 14);
+        Output.install(console);
+        try {
+            Output.println("=== STRATEGY PATTERN ===");
+            TravelBookingContext context = new TravelBookingContext();
+
+            context.setStrategy(new PlaneCostStrategy());
+            double cost1 = context.calculate(1500, "business", 2, true, true);
+            Output.println("Plane cost: ", cost1);
 
-        context.setStrategy(new PlaneCostStrategy());
-        double cost1 = context.calculate(1500, "business", 2, true, true);
-        System.out.println("Plane cost: " + cost1);
+            context.setStrategy(new TrainCostStrategy());
+            double cost2 = context.calculate(800, "econom", 3, false, true);
+            Output.println("Train cost: ", cost2);
 
-        context.setStrategy(new TrainCostStrategy());
-        double cost2 = context.calculate(800, "econom", 3, false, true);
-        System.out.println("Train cost: " + cost2);
+            context.setStrategy(new BusCostStrategy());
+            double cost3 = context.calculate(500, "econom", 4, true, false);
+            Output.println("Bus cost: ", cost3);
 
-        context.setStrategy(new BusCostStrategy());
-        double cost3 = context.calculate(500, "econom", 4, true, false);
-        System.out.println("Bus cost: " + cost3);
+            BulkFareEngine fares = new BulkFareEngine(2, new PlaneCostStrategy(), new TrainCostStrategy(), new BusCostStrategy());
+            FareMatrix matrix = fares.quote(new double[] { 1500, 800 });
+            for (int rank = 0; rank < 3; rank++) {
+                int combination = matrix.rankedCombination(1, rank);
+                Output.println("800 km option ", rank + 1, ": ", fares.describe(combination), " = ",
+                        matrix.fare(1, combination));
+            }
 
-        System.out.println("\n=== OBSERVER PATTERN ===");
-        StockExchange exchange = new StockExchange();
-        exchange.addStock("AAPL", 150);
-        exchange.addStock("TSLA", 250);
+            Output.println("\n=== OBSERVER PATTERN ===");
+            StockExchange exchange = new StockExchange(Runtime.getRuntime().availableProcessors(), 1024, 1024);
+            TimeSeriesStore series = new TimeSeriesStore(1024, 256, 60_000_000_000L);
+            exchange.setTimeSeries(series);
+            exchange.addStock("AAPL", 150);
+            exchange.addStock("TSLA", 250);
 
-        Trader alice = new Trader("Alice");
-        Trader bob = new Trader("Bob");
-        TradingRobot robo1 = new TradingRobot("AutoBot", 140, 260);
+            Trader alice = new Trader("Alice");
+            Trader bob = new Trader("Bob");
+            TradingRobot robo1 = new TradingRobot("AutoBot", 140, 260);
+            Trader carol = new Trader("Carol");
 
-        exchange.addObserver("AAPL", alice);
-        exchange.addObserver("AAPL", robo1);
-        exchange.addObserver("TSLA", bob);
-        exchange.addObserver("TSLA", robo1);
+            exchange.addObserver("AAPL", alice);
+            exchange.addObserver("AAPL", robo1);
+            exchange.addObserver("TSLA", bob);
+            exchange.addObserver("TSLA", robo1);
+            exchange.addObserver("TSLA", carol, DeliveryMode.CONFLATED);
 
-        exchange.updateStock("AAPL", 145);
-        exchange.updateStock("AAPL", 135);
-        exchange.updateStock("TSLA", 265);
+            exchange.updateStock("AAPL", 145);
+            exchange.updateStock("AAPL", 135);
+            exchange.updateStock("TSLA", 265);
 
-        exchange.removeObserver("TSLA", bob);
-        exchange.updateStock("TSLA", 240);
+            exchange.removeObserver("TSLA", bob);
+            exchange.updateStock("TSLA", 240);
 
-        exchange.updateStock("GOOG", 3000);
+            exchange.updateStock("GOOG", 3000);
 
-        try { Thread.sleep(1000); } catch (Exception ignored) {}
+            StockPublisher feed = new StockPublisher("Feed", 64, OverflowPolicy.DROP);
+            ObserverSubscriber daveFeed = new ObserverSubscriber(new Trader("Dave"), 16);
+            feed.subscribe(daveFeed);
+            exchange.addObserver("AAPL", feed);
+            exchange.updateStock("AAPL", 150);
+
+            RobotRuleEngine rules = new RobotRuleEngine("Rules");
+            rules.addRobot("TSLA", new TradingRobot("DipBuyer", 245, 300));
+            rules.addRobot("TSLA", new TradingRobot("Momentum", 200, 255));
+            exchange.addObserver("TSLA", rules);
+            exchange.updateStock("TSLA", 250);
+            exchange.updateStock("TSLA", 256);
+            exchange.updateStock("TSLA", 244);
+            exchange.updateStock("TSLA", 243);
+
+            exchange.close();
+            feed.close();
+            daveFeed.completion().join();
+
+            SeriesStats aapl = new SeriesStats();
+            if (series.read(exchange.register("AAPL"), System.nanoTime(), aapl)) {
+                Output.println(String.format("AAPL window: %d ticks, MA %.2f, VWAP %.2f, volatility %.4f",
+                        aapl.count, aapl.movingAverage, aapl.vwap, aapl.volatility));
+            }
+
+            if (Metrics.ENABLED) {
+                Output.println("\n=== METRICS ===");
+                InMemoryMetricsExporter metrics = new InMemoryMetricsExporter();
+                Metrics.export(metrics);
+                metrics.latest().forEach((name, value) -> Output.println(name, " = ", value));
+            }
+        } finally {
+            Output.install(new PrintStreamSink());
+            console.close();
+        }
     }
 }
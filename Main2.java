@@ -1,8 +1,17 @@
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
 interface IObserver {
     void update(float temperature);
+
+    default void update(int sensorId, float value) {
+        update(value);
+    }
 }
 
 interface ISubject {
@@ -12,6 +21,9 @@ interface ISubject {
 }
 
 class WeatherStation implements ISubject {
+    private static final LatencyHistogram NOTIFY_LATENCY = Metrics.histogram("weather.notifyObservers");
+    private static final LongAdder REJECTED = Metrics.counter("weather.setTemperature.rejected");
+
     private List<IObserver> observers = new ArrayList<>();
     private float temperature;
 
@@ -21,22 +33,25 @@ class WeatherStation implements ISubject {
 
     public void removeObserver(IObserver observer) {
         if (!observers.remove(observer)) {
-            System.out.println("Observer not found.");
+            Output.println("Observer not found.");
         }
     }
 
     public void notifyObservers() {
+        long start = Metrics.ENABLED ? System.nanoTime() : 0;
         for (IObserver observer : observers) {
             observer.update(temperature);
         }
+        if (Metrics.ENABLED) NOTIFY_LATENCY.recordSince(start);
     }
 
     public void setTemperature(float newTemperature) {
         if (Float.isNaN(newTemperature)) {
-            System.out.println("Invalid temperature value.");
+            if (Metrics.ENABLED) REJECTED.increment();
+            Output.println("Invalid temperature value.");
             return;
         }
-        System.out.println("Temperature changed: " + newTemperature + "°C");
+        Output.println("Temperature changed: ", newTemperature, "°C");
         this.temperature = newTemperature;
         notifyObservers();
     }
@@ -50,7 +65,183 @@ class WeatherDisplay implements IObserver {
     }
 
     public void update(float temperature) {
-        System.out.println(name + " shows new temperature: " + temperature + "°C");
+        Output.println(name, " shows new temperature: ", temperature, "°C");
+    }
+
+    public void update(int sensorId, float value) {
+        Output.println(name, " shows sensor ", sensorId, ": ", value, "°C");
+    }
+}
+
+class SensorIngestion implements ISubject {
+    private static final LatencyHistogram NOTIFY_LATENCY = Metrics.histogram("weather.sensors.notifyObservers");
+    private static final LongAdder SAMPLES = Metrics.counter("weather.sensors.samples");
+    private static final LongAdder REJECTED = Metrics.counter("weather.sensors.rejected");
+    private static final int STRIPES = 64;
+
+    private final int sensorCount;
+    private final int window;
+    private final long cadenceNanos;
+    private final float deltaThreshold;
+    private final int shift;
+    private final int mask;
+    private final float[] samples;
+    private final int[] minQueue;
+    private final int[] maxQueue;
+    private final long[] sequence;
+    private final double[] sum;
+    private final int[] minHead, minSize, maxHead, maxSize;
+    private final long[] lastNotifiedAt;
+    private final float[] lastNotified;
+    private final Object[] locks = new Object[STRIPES];
+    private volatile IObserver[] observers = new IObserver[0];
+
+    // A sensor notifies on its first sample, whenever it moves by deltaThreshold since the last
+    // notification, and otherwise at most once per cadenceMillis (0 notifies on every sample).
+    public SensorIngestion(int sensorCount, int window, long cadenceMillis, float deltaThreshold) {
+        if (sensorCount < 1 || window < 1 || cadenceMillis < 0 || !(deltaThreshold > 0)) {
+            throw new IllegalArgumentException("Sensor count and window must be positive, the cadence not negative and the delta threshold above zero.");
+        }
+        this.sensorCount = sensorCount;
+        this.window = window;
+        this.cadenceNanos = TimeUnit.MILLISECONDS.toNanos(cadenceMillis);
+        this.deltaThreshold = deltaThreshold;
+        this.shift = 32 - Integer.numberOfLeadingZeros(Math.max(1, window - 1));
+        this.mask = (1 << shift) - 1;
+        int slots = sensorCount << shift;
+        this.samples = new float[slots];
+        this.minQueue = new int[slots];
+        this.maxQueue = new int[slots];
+        this.sequence = new long[sensorCount];
+        this.sum = new double[sensorCount];
+        this.minHead = new int[sensorCount];
+        this.minSize = new int[sensorCount];
+        this.maxHead = new int[sensorCount];
+        this.maxSize = new int[sensorCount];
+        this.lastNotifiedAt = new long[sensorCount];
+        this.lastNotified = new float[sensorCount];
+        Arrays.fill(lastNotified, Float.NaN);
+        for (int i = 0; i < STRIPES; i++) locks[i] = new Object();
+    }
+
+    public synchronized void registerObserver(IObserver observer) {
+        IObserver[] copy = Arrays.copyOf(observers, observers.length + 1);
+        copy[observers.length] = observer;
+        observers = copy;
+    }
+
+    public synchronized void removeObserver(IObserver observer) {
+        IObserver[] current = observers;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i] != observer) continue;
+            IObserver[] copy = new IObserver[current.length - 1];
+            System.arraycopy(current, 0, copy, 0, i);
+            System.arraycopy(current, i + 1, copy, i, copy.length - i);
+            observers = copy;
+            return;
+        }
+        Output.println("Observer not found.");
+    }
+
+    // Observers run under the sensor's stripe lock, so one sensor's notifications reach them in
+    // ingest order even with concurrent writers; they must not block or ingest into other sensors.
+    public void notifyObservers() {
+        for (int sensorId = 0; sensorId < sensorCount; sensorId++) {
+            synchronized (lockOf(sensorId)) {
+                if (sequence[sensorId] == 0) continue;
+                notifyObservers(sensorId, samples[(sensorId << shift) + (int) ((sequence[sensorId] - 1) & mask)]);
+            }
+        }
+    }
+
+    private void notifyObservers(int sensorId, float value) {
+        long start = Metrics.ENABLED ? System.nanoTime() : 0;
+        for (IObserver observer : observers) observer.update(sensorId, value);
+        if (Metrics.ENABLED) NOTIFY_LATENCY.recordSince(start);
+    }
+
+    public boolean ingest(int sensorId, float value) {
+        if (sensorId < 0 || sensorId >= sensorCount) throw new IndexOutOfBoundsException("Unknown sensor: " + sensorId);
+        if (Float.isNaN(value)) {
+            if (Metrics.ENABLED) REJECTED.increment();
+            return false;
+        }
+        if (Metrics.ENABLED) SAMPLES.increment();
+        long now = System.nanoTime();
+        synchronized (lockOf(sensorId)) {
+            append(sensorId, value);
+            float last = lastNotified[sensorId];
+            boolean notify = Float.isNaN(last) || now - lastNotifiedAt[sensorId] >= cadenceNanos
+                    || Math.abs(value - last) >= deltaThreshold;
+            if (notify) {
+                lastNotifiedAt[sensorId] = now;
+                lastNotified[sensorId] = value;
+                notifyObservers(sensorId, value);
+            }
+            return notify;
+        }
+    }
+
+    private void append(int sensorId, float value) {
+        int base = sensorId << shift;
+        long seq = sequence[sensorId]++;
+        if (seq >= window) {
+            long expired = seq - window;
+            sum[sensorId] -= samples[base + (int) (expired & mask)];
+            if (minSize[sensorId] > 0 && minQueue[base + minHead[sensorId]] == (int) expired) {
+                minHead[sensorId] = (minHead[sensorId] + 1) & mask;
+                minSize[sensorId]--;
+            }
+            if (maxSize[sensorId] > 0 && maxQueue[base + maxHead[sensorId]] == (int) expired) {
+                maxHead[sensorId] = (maxHead[sensorId] + 1) & mask;
+                maxSize[sensorId]--;
+            }
+        }
+        while (minSize[sensorId] > 0) {
+            int last = minQueue[base + ((minHead[sensorId] + minSize[sensorId] - 1) & mask)];
+            if (samples[base + (last & mask)] < value) break;
+            minSize[sensorId]--;
+        }
+        minQueue[base + ((minHead[sensorId] + minSize[sensorId]++) & mask)] = (int) seq;
+        while (maxSize[sensorId] > 0) {
+            int last = maxQueue[base + ((maxHead[sensorId] + maxSize[sensorId] - 1) & mask)];
+            if (samples[base + (last & mask)] > value) break;
+            maxSize[sensorId]--;
+        }
+        maxQueue[base + ((maxHead[sensorId] + maxSize[sensorId]++) & mask)] = (int) seq;
+        samples[base + (int) (seq & mask)] = value;
+        sum[sensorId] += value;
+    }
+
+    public float min(int sensorId) {
+        synchronized (lockOf(sensorId)) {
+            if (minSize[sensorId] == 0) return Float.NaN;
+            return samples[(sensorId << shift) + (minQueue[(sensorId << shift) + minHead[sensorId]] & mask)];
+        }
+    }
+
+    public float max(int sensorId) {
+        synchronized (lockOf(sensorId)) {
+            if (maxSize[sensorId] == 0) return Float.NaN;
+            return samples[(sensorId << shift) + (maxQueue[(sensorId << shift) + maxHead[sensorId]] & mask)];
+        }
+    }
+
+    public double mean(int sensorId) {
+        synchronized (lockOf(sensorId)) {
+            long count = Math.min(sequence[sensorId], window);
+            return count == 0 ? Double.NaN : sum[sensorId] / count;
+        }
+    }
+
+    public long samples(int sensorId) {
+        synchronized (lockOf(sensorId)) {
+            return sequence[sensorId];
+        }
+    }
+
+    private Object lockOf(int sensorId) {
+        return locks[sensorId & (STRIPES - 1)];
     }
 }
 
@@ -62,28 +253,177 @@ class EmailNotifier implements IObserver {
     }
 
     public void update(float temperature) {
-        System.out.println("Email sent to " + email + ": Temperature updated to " + temperature + "°C");
+        Output.println("Email sent to ", email, ": Temperature updated to ", temperature, "°C");
     }
 }
 
-public class Main2 {
-    public static void main(String[] args) {
+final class TemperatureReading {
+    final int sensorId;
+    final float value;
+
+    TemperatureReading(int sensorId, float value) {
+        this.sensorId = sensorId;
+        this.value = value;
+    }
+}
+
+class WeatherPublisher extends BoundedPublisher<TemperatureReading> implements IObserver {
+    public WeatherPublisher(int bufferCapacity, OverflowPolicy policy) {
+        super(bufferCapacity, policy);
+    }
+
+    public WeatherPublisher(Executor executor, int bufferCapacity, OverflowPolicy policy, long blockTimeoutMillis) {
+        super(executor, bufferCapacity, policy, blockTimeoutMillis);
+    }
+
+    public void update(float temperature) {
+        publish(new TemperatureReading(-1, temperature));
+    }
+
+    public void update(int sensorId, float value) {
+        publish(new TemperatureReading(sensorId, value));
+    }
+}
+
+class ObserverSubscriber extends PrefetchSubscriber<TemperatureReading> {
+    public ObserverSubscriber(IObserver observer, int prefetch) {
+        super(reading -> {
+            if (reading.sensorId < 0) observer.update(reading.value);
+            else observer.update(reading.sensorId, reading.value);
+        }, prefetch);
+    }
+}
+
+class Benchmarks extends BenchmarkHarness {
+    static void main(String[] args) throws Exception {
+        execute(args, Benchmarks::run);
+    }
+
+    private static IObserver counter() {
+        return temperature -> blackhole = temperature;
+    }
+
+    private static void run() throws Exception {
+        report.println("# metrics " + (Metrics.ENABLED ? "enabled" : "disabled") + " (-Dmetrics.enabled)");
+        float[] walk = new float[1 << 16];
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 1; i < walk.length; i++) walk[i] = walk[i - 1] + (float) random.nextGaussian() * 0.1f;
+
         WeatherStation station = new WeatherStation();
+        for (int i = 0; i < 10; i++) station.registerObserver(counter());
+        measure("WeatherStation.setTemperature:observers=10", 1_000_000, ops -> {
+            for (int i = 0; i < ops; i++) station.setTemperature(walk[i & (walk.length - 1)]);
+        });
+        measure("WeatherStation.notifyObservers:observers=10", 1_000_000, ops -> {
+            for (int i = 0; i < ops; i++) station.notifyObservers();
+        });
 
-        WeatherDisplay mobileApp = new WeatherDisplay("Mobile App");
-        WeatherDisplay billboard = new WeatherDisplay("Digital Billboard");
-        EmailNotifier emailAlert = new EmailNotifier("marka@weather.com");
+        for (long cadence : new long[] { 0, 1 }) {
+            SensorIngestion sensors = new SensorIngestion(1_000, 256, cadence, Float.POSITIVE_INFINITY);
+            for (int i = 0; i < 10; i++) sensors.registerObserver(counter());
+            measure("SensorIngestion.ingest:sensors=1000,cadence=" + cadence + "ms", 4_000_000, ops -> {
+                for (int i = 0; i < ops; i++) sensors.ingest(i % 1_000, walk[i & (walk.length - 1)]);
+            });
+        }
+        SensorIngestion sensors = new SensorIngestion(1_000, 256, 60_000, 0.5f);
+        for (int i = 0; i < 10; i++) sensors.registerObserver(counter());
+        long[] notified = new long[1];
+        measure("SensorIngestion.ingest:sensors=1000,delta=0.5", 4_000_000, ops -> {
+            for (int i = 0; i < ops; i++) {
+                if (sensors.ingest(i % 1_000, walk[(i / 1_000) & (walk.length - 1)])) notified[0]++;
+            }
+        });
+        if (notified[0] > 0) report.printf("%-56s %.2f%% of samples notified%n", "SensorIngestion delta=0.5 fan-out rate",
+                100.0 * notified[0] / (4_000_000L * (WARMUPS + ITERATIONS)));
 
-        station.registerObserver(mobileApp);
-        station.registerObserver(billboard);
-        station.registerObserver(emailAlert);
+        for (OverflowPolicy policy : OverflowPolicy.values()) {
+            WeatherPublisher feed = new WeatherPublisher(1024, policy);
+            long work = policy == OverflowPolicy.DROP ? 20_000 : 0;
+            ObserverSubscriber subscriber = new ObserverSubscriber(temperature -> {
+                long until = System.nanoTime() + work;
+                while (System.nanoTime() < until) Thread.onSpinWait();
+                blackhole = temperature;
+            }, 256);
+            feed.subscribe(subscriber);
+            String name = "WeatherPublisher.update:" + (work > 0 ? "slow" : "fast") + " subscriber," + policy;
+            measure(name, 1_000_000, ops -> {
+                for (int i = 0; i < ops; i++) feed.update(walk[i & (walk.length - 1)]);
+            });
+            if (selected(name)) report.printf("%-56s dropped %d, lag %d%n", "  " + policy + " totals", feed.dropped(), feed.lag());
+            feed.close();
+            subscriber.completion().join();
+        }
+    }
+}
 
-        station.setTemperature(25.0f);
-        station.setTemperature(30.0f);
+// Compile from this directory so javac finds the shared harness, metrics, output and flow
+// sources on the source path; the single-file source launcher cannot, so `java Main2.java`
+// does not work:
+//   javac -encoding UTF-8 -sourcepath . -d out/weather Main2.java
+//   java -cp out/weather Main2 [mode]
+public class Main2 {
+    static final String USAGE = "usage: java -cp out/weather Main2 [bench [filter]]";
 
-        station.removeObserver(billboard);
-        station.setTemperature(28.0f);
+    public static void main(String[] args) throws Exception {
+        if (Metrics.ENABLED) Metrics.schedule(new JmxMetricsExporter("patterns.weather"), 1_000);
+        if (args.length > 0 && args[0].equals("bench")) {
+            Benchmarks.main(args);
+            return;
+        }
+        if (args.length > 0) {
+            System.err.println(USAGE);
+            System.exit(2);
+        }
+        AsyncFileSink console = AsyncFileSink.stdout(1 << 14);
+        Output.install(console);
+        try {
+            WeatherStation station = new WeatherStation();
+
+            WeatherDisplay mobileApp = new WeatherDisplay("Mobile App");
+            WeatherDisplay billboard = new WeatherDisplay("Digital Billboard");
+            EmailNotifier emailAlert = new EmailNotifier("marka@weather.com");
+
+            station.registerObserver(mobileApp);
+            station.registerObserver(billboard);
+            station.registerObserver(emailAlert);
+
+            station.setTemperature(25.0f);
+            station.setTemperature(30.0f);
 
-        station.removeObserver(billboard);
+            station.removeObserver(billboard);
+            station.setTemperature(28.0f);
+
+            station.removeObserver(billboard);
+
+            Output.println("\n=== SENSOR INGESTION ===");
+            SensorIngestion sensors = new SensorIngestion(3, 8, 1_000, 2.0f);
+            sensors.registerObserver(mobileApp);
+            float[] readings = { 21.0f, 18.5f, 30.0f, 21.5f, 18.0f, 30.5f, 22.0f, 21.0f, 29.5f, 24.5f, 18.5f, 30.0f };
+            for (int i = 0; i < readings.length; i++) sensors.ingest(i % 3, readings[i]);
+            for (int sensorId = 0; sensorId < 3; sensorId++) {
+                Output.println("Sensor ", sensorId, ": min ", sensors.min(sensorId), ", max ", sensors.max(sensorId),
+                        ", mean ", sensors.mean(sensorId), " over ", sensors.samples(sensorId), " samples");
+            }
+
+            Output.println("\n=== REACTIVE FEED ===");
+            WeatherPublisher feed = new WeatherPublisher(16, OverflowPolicy.DROP);
+            ObserverSubscriber emailFeed = new ObserverSubscriber(emailAlert, 8);
+            feed.subscribe(emailFeed);
+            station.removeObserver(emailAlert);
+            station.registerObserver(feed);
+            station.setTemperature(31.5f);
+            feed.close();
+            emailFeed.completion().join();
+
+            if (Metrics.ENABLED) {
+                Output.println("\n=== METRICS ===");
+                InMemoryMetricsExporter metrics = new InMemoryMetricsExporter();
+                Metrics.export(metrics);
+                metrics.latest().forEach((name, value) -> Output.println(name, " = ", value));
+            }
+        } finally {
+            Output.install(new PrintStreamSink());
+            console.close();
+        }
     }
 }
@@ -0,0 +1,81 @@
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+// Process-wide counters, histograms and gauges shared by every program in this directory.
+public final class Metrics {
+    static final boolean ENABLED = Boolean.getBoolean("metrics.enabled");
+
+    // Unregisters a gauge; owners close it when they shut down so the gauge stops pinning them.
+    interface Registration extends AutoCloseable {
+        Registration NONE = () -> { };
+
+        void close();
+    }
+
+    private static final Map<String, LongAdder> COUNTERS = new ConcurrentSkipListMap<>();
+    private static final Map<String, LatencyHistogram> HISTOGRAMS = new ConcurrentSkipListMap<>();
+    private static final Map<String, LongSupplier> GAUGES = new ConcurrentSkipListMap<>();
+    private static final Map<String, AtomicInteger> GAUGE_INSTANCES = new ConcurrentSkipListMap<>();
+    private static volatile ScheduledExecutorService scheduler;
+
+    private Metrics() {
+    }
+
+    static LongAdder counter(String name) {
+        return COUNTERS.computeIfAbsent(name, n -> new LongAdder());
+    }
+
+    static LatencyHistogram histogram(String name) {
+        return HISTOGRAMS.computeIfAbsent(name, n -> new LatencyHistogram());
+    }
+
+    // Gauges belong to an instance, so each registration is exported as name#n rather than
+    // replacing an earlier instance's gauge of the same name.
+    static Registration gauge(String name, LongSupplier value) {
+        if (!ENABLED) return Registration.NONE;
+        String key = name + "#" + GAUGE_INSTANCES.computeIfAbsent(name, n -> new AtomicInteger()).incrementAndGet();
+        GAUGES.put(key, value);
+        return () -> GAUGES.remove(key, value);
+    }
+
+    static Map<String, Long> snapshot() {
+        Map<String, Long> snapshot = new TreeMap<>();
+        COUNTERS.forEach((name, counter) -> snapshot.put(name, counter.sum()));
+        HISTOGRAMS.forEach((name, histogram) -> {
+            snapshot.put(name + ".count", histogram.count());
+            snapshot.put(name + ".p50.ns", histogram.percentile(50));
+            snapshot.put(name + ".p99.ns", histogram.percentile(99));
+            snapshot.put(name + ".p999.ns", histogram.percentile(99.9));
+            snapshot.put(name + ".max.ns", histogram.max());
+        });
+        GAUGES.forEach((name, gauge) -> snapshot.put(name, gauge.getAsLong()));
+        return snapshot;
+    }
+
+    static void export(MetricsExporter exporter) {
+        exporter.export(snapshot());
+    }
+
+    static ScheduledFuture<?> schedule(MetricsExporter exporter, long periodMillis) {
+        if (scheduler == null) {
+            synchronized (Metrics.class) {
+                if (scheduler == null) {
+                    scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                        Thread t = new Thread(r, "metrics-export");
+                        t.setDaemon(true);
+                        return t;
+                    });
+                }
+            }
+        }
+        return scheduler.scheduleAtFixedRate(() -> export(exporter), 0, periodMillis, TimeUnit.MILLISECONDS);
+    }
+}
@@ -0,0 +1,5 @@
+import java.util.Map;
+
+public interface MetricsExporter {
+    void export(Map<String, Long> snapshot);
+}
@@ -0,0 +1,138 @@
+import java.util.Arrays;
+
+// Console output shared by every program in this directory. A line travels to the sink as its
+// parts and is rendered there, so an asynchronous sink formats on its own thread. Parts that
+// could still change after the call returns are rendered here first; byte[] parts are taken
+// as UTF-8 the caller promises not to modify.
+public final class Output {
+    private static volatile OutputSink sink = new PrintStreamSink();
+    private static final ThreadLocal<Line> LINES = ThreadLocal.withInitial(Line::new);
+
+    private static final class Line {
+        final Object[] parts = new Object[6];
+        boolean busy;
+    }
+
+    private Output() {
+    }
+
+    static OutputSink install(OutputSink next) {
+        OutputSink previous = sink;
+        sink = next;
+        return previous;
+    }
+
+    static void print(Object part) {
+        emit(false, 1, part, null, null, null, null, null);
+    }
+
+    static void println(Object part) {
+        emit(true, 1, part, null, null, null, null, null);
+    }
+
+    static void println(Object a, Object b) {
+        emit(true, 2, a, b, null, null, null, null);
+    }
+
+    static void println(Object a, Object b, Object c) {
+        emit(true, 3, a, b, c, null, null, null);
+    }
+
+    static void println(Object a, Object b, Object c, Object d) {
+        emit(true, 4, a, b, c, d, null, null);
+    }
+
+    static void println(Object a, Object b, Object c, Object d, Object e) {
+        emit(true, 5, a, b, c, d, e, null);
+    }
+
+    static void println(Object a, Object b, Object c, Object d, Object e, Object f) {
+        emit(true, 6, a, b, c, d, e, f);
+    }
+
+    static void print(Object... parts) {
+        emit(false, parts);
+    }
+
+    static void println(Object... parts) {
+        emit(true, parts);
+    }
+
+    static void flush() {
+        sink.flush();
+    }
+
+    private static void emit(boolean newline, int count, Object a, Object b, Object c, Object d, Object e, Object f) {
+        Line line = acquire();
+        Object[] parts = line.parts;
+        try {
+            parts[0] = snapshot(a);
+            if (count > 1) parts[1] = snapshot(b);
+            if (count > 2) parts[2] = snapshot(c);
+            if (count > 3) parts[3] = snapshot(d);
+            if (count > 4) parts[4] = snapshot(e);
+            if (count > 5) parts[5] = snapshot(f);
+            write(parts, count, newline);
+        } finally {
+            release(line);
+        }
+    }
+
+    private static void emit(boolean newline, Object[] parts) {
+        Object[] copy = parts;
+        for (int i = 0; i < parts.length; i++) {
+            Object part = snapshot(parts[i]);
+            if (part == parts[i]) continue;
+            if (copy == parts) copy = parts.clone();
+            copy[i] = part;
+        }
+        write(copy, copy.length, newline);
+    }
+
+    // An argument whose toString() prints gets its own parts instead of clobbering ours.
+    private static Line acquire() {
+        Line line = LINES.get();
+        if (line.busy) line = new Line();
+        line.busy = true;
+        return line;
+    }
+
+    private static void release(Line line) {
+        Arrays.fill(line.parts, null);
+        line.busy = false;
+    }
+
+    private static Object snapshot(Object part) {
+        if (part == null || part instanceof String || part instanceof byte[] || part instanceof Integer
+                || part instanceof Long || part instanceof Double || part instanceof Float
+                || part instanceof Boolean || part instanceof Character || part instanceof Short
+                || part instanceof Byte || part instanceof Enum) return part;
+        return String.valueOf(part);
+    }
+
+    // Appends a part that is not byte[], without the String that append(Object) would build
+    // for a boxed number.
+    static void render(StringBuilder into, Object part) {
+        if (part instanceof String) into.append((String) part);
+        else if (part instanceof Integer) into.append(((Integer) part).intValue());
+        else if (part instanceof Long) into.append(((Long) part).longValue());
+        else if (part instanceof Double) into.append(((Double) part).doubleValue());
+        else if (part instanceof Float) into.append(((Float) part).floatValue());
+        else if (part instanceof Character) into.append(((Character) part).charValue());
+        else if (part instanceof Boolean) into.append(((Boolean) part).booleanValue());
+        else into.append(part);
+    }
+
+    // A producer that read the previous sink just before a swap and finds it closed retries
+    // on the sink that replaced it.
+    private static void write(Object[] parts, int count, boolean newline) {
+        OutputSink current = sink;
+        try {
+            current.write(parts, count, newline);
+        } catch (IllegalStateException e) {
+            OutputSink next = sink;
+            if (next == current) throw e;
+            next.write(parts, count, newline);
+        }
+    }
+}
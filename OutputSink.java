@@ -0,0 +1,9 @@
+// Receives one line as its unrendered parts. Output hands over only values that cannot
+// change after the call (strings, boxed primitives, enums), plus byte[] parts that hold UTF-8
+// the caller never modifies again and that are written as they are. The array itself is only
+// valid for the duration of the call; a sink that renders later copies the references.
+public interface OutputSink {
+    void write(Object[] parts, int count, boolean newline);
+
+    void flush();
+}
@@ -0,0 +1,2 @@
+// What a bounded stage does when its buffer is full: drop the item, or make the producer wait.
+public enum OverflowPolicy { DROP, BLOCK }
@@ -0,0 +1,51 @@
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+import java.util.function.Consumer;
+
+// Flow.Subscriber that keeps up to prefetch items requested, topping the demand up by half
+// the prefetch at a time rather than one request per item.
+public class PrefetchSubscriber<T> implements Flow.Subscriber<T> {
+    private final Consumer<? super T> consumer;
+    private final int prefetch;
+    private final int refill;
+    private final CompletableFuture<Void> completion = new CompletableFuture<>();
+    private Flow.Subscription subscription;
+    private int received;
+
+    public PrefetchSubscriber(Consumer<? super T> consumer, int prefetch) {
+        if (prefetch < 1) throw new IllegalArgumentException("Prefetch must be positive.");
+        this.consumer = consumer;
+        this.prefetch = prefetch;
+        this.refill = Math.max(1, prefetch / 2);
+    }
+
+    public void onSubscribe(Flow.Subscription subscription) {
+        this.subscription = subscription;
+        subscription.request(prefetch);
+    }
+
+    public void onNext(T item) {
+        consumer.accept(item);
+        if (++received == refill) {
+            received = 0;
+            subscription.request(refill);
+        }
+    }
+
+    public void onError(Throwable throwable) {
+        completion.completeExceptionally(throwable);
+    }
+
+    public void onComplete() {
+        completion.complete(null);
+    }
+
+    public void cancel() {
+        subscription.cancel();
+        completion.complete(null);
+    }
+
+    public CompletableFuture<Void> completion() {
+        return completion;
+    }
+}
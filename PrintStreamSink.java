@@ -0,0 +1,38 @@
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+
+public class PrintStreamSink implements OutputSink {
+    private static final byte[] NEWLINE = System.lineSeparator().getBytes(StandardCharsets.UTF_8);
+    private static final ThreadLocal<StringBuilder> LINES = ThreadLocal.withInitial(() -> new StringBuilder(128));
+
+    public void write(Object[] parts, int count, boolean newline) {
+        StringBuilder line = LINES.get();
+        PrintStream out = System.out;
+        synchronized (out) {
+            for (int i = 0; i < count; i++) {
+                Object part = parts[i];
+                if (part instanceof byte[]) {
+                    print(out, line);
+                    byte[] bytes = (byte[]) part;
+                    out.write(bytes, 0, bytes.length);
+                } else {
+                    Output.render(line, part);
+                }
+            }
+            if (newline && line.length() == 0) out.write(NEWLINE, 0, NEWLINE.length);
+            else if (newline) print(out, line.append(System.lineSeparator()));
+            else print(out, line);
+        }
+    }
+
+    private static void print(PrintStream out, StringBuilder line) {
+        if (line.length() == 0) return;
+        out.print(line);
+        line.setLength(0);
+        if (line.capacity() > 8192) line.trimToSize();
+    }
+
+    public void flush() {
+        System.out.flush();
+    }
+}
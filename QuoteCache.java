@@ -0,0 +1,40 @@
+// Bounded cache of prices keyed by strategy identity and two long key parts. Callers read the
+// strategy's generation before pricing and hand it back to put, so a quote priced while
+// invalidate(strategy) ran is never served afterwards.
+public interface QuoteCache {
+    // Returned by key() for an input that is not on the quantization grid and so is not cached.
+    long UNCACHEABLE = Long.MIN_VALUE;
+
+    long generation(Object strategy);
+
+    // The cached quote, or NaN on a miss.
+    double get(Object strategy, long generation, long first, long second);
+
+    void put(Object strategy, long generation, long first, long second, double quote);
+
+    void invalidate(Object strategy);
+
+    void invalidateAll();
+
+    long hits();
+
+    long misses();
+
+    long evictions();
+
+    // Key part for a non-negative input: its exact bits when step is 0, otherwise the exact bits
+    // of the grid point it lies on. Inputs between grid points are UNCACHEABLE and priced as they
+    // are, so a cached quote is always the price of the value its key decodes to.
+    static long key(double value, double step) {
+        if (step > 0) {
+            double snapped = Math.rint(value / step) * step;
+            if (Math.abs(value - snapped) > 1e-9 * Math.max(1, value)) return UNCACHEABLE;
+            value = snapped;
+        }
+        return Double.doubleToLongBits(value + 0.0);
+    }
+
+    static double value(long key) {
+        return Double.longBitsToDouble(key);
+    }
+}